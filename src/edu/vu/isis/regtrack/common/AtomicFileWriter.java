@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Replaces a file by writing its new contents to a temporary file first and then renaming it over the original, so that
+//   a crash while writing never corrupts the previous contents
+public final class AtomicFileWriter
+{
+	public interface Contents
+	{
+		void write(DataOutputStream dataStreamOut) throws IOException;
+	};
+	
+	// Returns false (after reporting the error using the given description of the file) if the file could not be replaced
+	public static boolean write(final File file, final String description, final Contents contents)
+	{
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		DataOutputStream dataStreamOut = null;
+		try
+		{
+			dataStreamOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+			contents.write(dataStreamOut);
+			dataStreamOut.close();
+			dataStreamOut = null;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing " + description + " " + file.getPath() + ": " + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			if (dataStreamOut != null)
+				try { dataStreamOut.close(); } catch (IOException e) {}
+		}
+		
+		if (!temporaryFile.renameTo(file) && (!file.delete() || !temporaryFile.renameTo(file)))
+		{
+			System.err.println("Error replacing " + description + " " + file.getPath());
+			return false;
+		}
+		return true;
+	}
+}
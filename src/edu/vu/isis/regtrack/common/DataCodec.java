@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map.Entry;
+
+import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
+
+// Compact binary encodings shared by everything that writes data outside of the process (network packets and checkpoints)
+public final class DataCodec
+{
+	// Longest string (receiver IDs) which may be encoded, so that a corrupt length read from a packet or file can never
+	//   cause a huge or negative allocation
+	public static final int MAX_ID_LENGTH = 255;
+	
+	public static void writeString(final DataOutputStream dataStreamOut, final String value) throws IOException
+	{
+		if (value.length() > MAX_ID_LENGTH)
+			throw new IOException("String of length " + value.length() + " exceeds the maximum encodable length of " + MAX_ID_LENGTH);
+		dataStreamOut.writeInt(value.length());
+		dataStreamOut.writeChars(value);
+	}
+	
+	// Throws an EOFException if the stream ends before the full string has been read
+	public static String readString(final DataInputStream dataStreamIn) throws IOException
+	{
+		int numChars = dataStreamIn.readInt();
+		if ((numChars < 0) || (numChars > MAX_ID_LENGTH))
+			throw new IOException("Invalid encoded string length: " + numChars);
+		StringBuilder value = new StringBuilder(numChars);
+		for (int i = 0; i < numChars; ++i)
+			value.append(dataStreamIn.readChar());
+		return value.toString();
+	}
+	
+	public static void writeCoordinate(final DataOutputStream dataStreamOut, final Coordinate coordinate) throws IOException
+	{
+		dataStreamOut.writeDouble(coordinate.X);
+		dataStreamOut.writeDouble(coordinate.Y);
+		dataStreamOut.writeDouble(coordinate.Z);
+	}
+	
+	public static void readCoordinate(final DataInputStream dataStreamIn, final Coordinate coordinate) throws IOException
+	{
+		coordinate.setXYZ(dataStreamIn.readDouble(), dataStreamIn.readDouble(), dataStreamIn.readDouble());
+	}
+	
+	// Only the satellite positions and elevations are written, not the full ephemerides (the epoch is not written)
+	public static void writeProcessedData(final DataOutputStream dataStreamOut, final ProcessedData processedData) throws IOException
+	{
+		writeString(dataStreamOut, processedData.ID);
+		dataStreamOut.writeDouble(processedData.receiverClockBias);
+		dataStreamOut.writeDouble(processedData.receiverClockDrift);
+		writeCoordinate(dataStreamOut, processedData.absoluteLocation);
+		
+		dataStreamOut.writeInt(processedData.observations.getValidSatelliteNumbers().size());
+		for (final Entry<Integer, SatelliteObservation> satEntry : processedData.observations.getFullSatelliteCollection())
+		{
+			SatelliteObservation satDatum = satEntry.getValue();
+			dataStreamOut.writeInt(satEntry.getKey());
+			dataStreamOut.writeDouble(satDatum.pseudorange);
+			dataStreamOut.writeDouble(satDatum.carrierRange);
+			dataStreamOut.writeDouble(satDatum.dopplerShift);
+			dataStreamOut.writeDouble(satDatum.signalStrength);
+			dataStreamOut.writeBoolean(satDatum.potentialHalfCycleSlip);
+			dataStreamOut.writeDouble(satDatum.ephemerisDatum.X);
+			dataStreamOut.writeDouble(satDatum.ephemerisDatum.Y);
+			dataStreamOut.writeDouble(satDatum.ephemerisDatum.Z);
+			dataStreamOut.writeDouble(satDatum.ephemerisDatum.elevation);
+			dataStreamOut.writeBoolean(satDatum.cycleSlips);
+		}
+	}
+	
+	public static ProcessedData readProcessedData(final DataInputStream dataStreamIn, long epoch) throws IOException
+	{
+		ProcessedData processedData = new ProcessedData(readString(dataStreamIn), epoch, new Coordinate());
+		processedData.receiverClockBias = dataStreamIn.readDouble();
+		processedData.receiverClockDrift = dataStreamIn.readDouble();
+		readCoordinate(dataStreamIn, processedData.absoluteLocation);
+		
+		int numSatellites = dataStreamIn.readInt();
+		for (int i = 0; i < numSatellites; ++i)
+		{
+			int PRN = dataStreamIn.readInt();
+			SatelliteObservation satDatum = new SatelliteObservation(new EphemerisDatum(), dataStreamIn.readDouble(),
+					dataStreamIn.readDouble(), dataStreamIn.readDouble(), dataStreamIn.readDouble(), dataStreamIn.readBoolean());
+			satDatum.ephemerisDatum.X = dataStreamIn.readDouble();
+			satDatum.ephemerisDatum.Y = dataStreamIn.readDouble();
+			satDatum.ephemerisDatum.Z = dataStreamIn.readDouble();
+			satDatum.ephemerisDatum.elevation = dataStreamIn.readDouble();
+			satDatum.cycleSlips = dataStreamIn.readBoolean();
+			processedData.observations.addData(PRN, satDatum);
+		}
+		
+		return processedData;
+	}
+	
+	// Writes the broadcast orbit and clock parameters (derived positions, velocities, and angles are not written)
+	public static void writeEphemeris(final DataOutputStream dataStreamOut, final EphemerisDatum ephDatum) throws IOException
+	{
+		dataStreamOut.writeInt(ephDatum.PRN);
+		dataStreamOut.writeInt(ephDatum.TOW);
+		dataStreamOut.writeInt(ephDatum.week);
+		dataStreamOut.writeInt(ephDatum.L2Code);
+		dataStreamOut.writeInt(ephDatum.svHealth);
+		dataStreamOut.writeInt(ephDatum.iode);
+		dataStreamOut.writeInt(ephDatum.iodc);
+		dataStreamOut.writeDouble(ephDatum.svAccur);
+		dataStreamOut.writeDouble(ephDatum.af0);
+		dataStreamOut.writeDouble(ephDatum.af1);
+		dataStreamOut.writeDouble(ephDatum.af2);
+		dataStreamOut.writeDouble(ephDatum.tgd);
+		dataStreamOut.writeDouble(ephDatum.A);
+		dataStreamOut.writeDouble(ephDatum.toes);
+		dataStreamOut.writeDouble(ephDatum.rootA);
+		dataStreamOut.writeDouble(ephDatum.e);
+		dataStreamOut.writeDouble(ephDatum.i0);
+		dataStreamOut.writeDouble(ephDatum.iDot);
+		dataStreamOut.writeDouble(ephDatum.omega);
+		dataStreamOut.writeDouble(ephDatum.omega0);
+		dataStreamOut.writeDouble(ephDatum.omegaDot);
+		dataStreamOut.writeDouble(ephDatum.M0);
+		dataStreamOut.writeDouble(ephDatum.deltaN);
+		dataStreamOut.writeDouble(ephDatum.crc);
+		dataStreamOut.writeDouble(ephDatum.crs);
+		dataStreamOut.writeDouble(ephDatum.cuc);
+		dataStreamOut.writeDouble(ephDatum.cus);
+		dataStreamOut.writeDouble(ephDatum.cic);
+		dataStreamOut.writeDouble(ephDatum.cis);
+		dataStreamOut.writeDouble(ephDatum.fitInt);
+		dataStreamOut.writeLong(ephDatum.toe.timeMS);
+		dataStreamOut.writeDouble(ephDatum.toe.fracMS);
+		dataStreamOut.writeLong(ephDatum.toc.timeMS);
+		dataStreamOut.writeDouble(ephDatum.toc.fracMS);
+		dataStreamOut.writeBoolean(ephDatum.isSBAS);
+		dataStreamOut.writeBoolean(ephDatum.hasFrame1);
+		dataStreamOut.writeBoolean(ephDatum.hasFrame2);
+		dataStreamOut.writeBoolean(ephDatum.hasFrame3);
+		dataStreamOut.writeBoolean(ephDatum.isValid);
+	}
+	
+	public static EphemerisDatum readEphemeris(final DataInputStream dataStreamIn) throws IOException
+	{
+		EphemerisDatum ephDatum = new EphemerisDatum();
+		ephDatum.PRN = dataStreamIn.readInt();
+		ephDatum.TOW = dataStreamIn.readInt();
+		ephDatum.week = dataStreamIn.readInt();
+		ephDatum.L2Code = dataStreamIn.readInt();
+		ephDatum.svHealth = dataStreamIn.readInt();
+		ephDatum.iode = dataStreamIn.readInt();
+		ephDatum.iodc = dataStreamIn.readInt();
+		ephDatum.svAccur = dataStreamIn.readDouble();
+		ephDatum.af0 = dataStreamIn.readDouble();
+		ephDatum.af1 = dataStreamIn.readDouble();
+		ephDatum.af2 = dataStreamIn.readDouble();
+		ephDatum.tgd = dataStreamIn.readDouble();
+		ephDatum.A = dataStreamIn.readDouble();
+		ephDatum.toes = dataStreamIn.readDouble();
+		ephDatum.rootA = dataStreamIn.readDouble();
+		ephDatum.e = dataStreamIn.readDouble();
+		ephDatum.i0 = dataStreamIn.readDouble();
+		ephDatum.iDot = dataStreamIn.readDouble();
+		ephDatum.omega = dataStreamIn.readDouble();
+		ephDatum.omega0 = dataStreamIn.readDouble();
+		ephDatum.omegaDot = dataStreamIn.readDouble();
+		ephDatum.M0 = dataStreamIn.readDouble();
+		ephDatum.deltaN = dataStreamIn.readDouble();
+		ephDatum.crc = dataStreamIn.readDouble();
+		ephDatum.crs = dataStreamIn.readDouble();
+		ephDatum.cuc = dataStreamIn.readDouble();
+		ephDatum.cus = dataStreamIn.readDouble();
+		ephDatum.cic = dataStreamIn.readDouble();
+		ephDatum.cis = dataStreamIn.readDouble();
+		ephDatum.fitInt = dataStreamIn.readDouble();
+		ephDatum.toe.timeMS = dataStreamIn.readLong();
+		ephDatum.toe.fracMS = dataStreamIn.readDouble();
+		ephDatum.toc.timeMS = dataStreamIn.readLong();
+		ephDatum.toc.fracMS = dataStreamIn.readDouble();
+		ephDatum.isSBAS = dataStreamIn.readBoolean();
+		ephDatum.hasFrame1 = dataStreamIn.readBoolean();
+		ephDatum.hasFrame2 = dataStreamIn.readBoolean();
+		ephDatum.hasFrame3 = dataStreamIn.readBoolean();
+		ephDatum.isValid = dataStreamIn.readBoolean();
+		return ephDatum;
+	}
+}
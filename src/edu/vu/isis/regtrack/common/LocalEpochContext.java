@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map.Entry;
+
+import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
+
+// Local-side differencing terms for a single epoch, computed once when the local data is published and
+//   shared read-only by every remote pair formed at that epoch (all arrays are indexed by PRN)
+public final class LocalEpochContext
+{
+	public final long receiveEpoch;
+	public final ProcessedData local, previousLocal;
+	public final Coordinate referencePosition;
+	public final int[] satellitesByElevation;
+	public final boolean[] hasLocal = new boolean[GpsConstants.MAX_PRN+1], hasPreviousLocal = new boolean[GpsConstants.MAX_PRN+1];
+	public final boolean[] localHalfCycleSlip = new boolean[GpsConstants.MAX_PRN+1], localCycleSlip = new boolean[GpsConstants.MAX_PRN+1];
+	public final boolean[] previousLocalHalfCycleSlip = new boolean[GpsConstants.MAX_PRN+1];
+	public final double[] localCarrierRange = new double[GpsConstants.MAX_PRN+1], previousLocalCarrierRange = new double[GpsConstants.MAX_PRN+1];
+	public final double[] localSatelliteRange = new double[GpsConstants.MAX_PRN+1], previousLocalSatelliteRange = new double[GpsConstants.MAX_PRN+1];
+	public final double[] localSignalWeight = new double[GpsConstants.MAX_PRN+1];
+	
+	public LocalEpochContext(final ProcessedData localData, final ProcessedData previousLocalData)
+	{
+		receiveEpoch = localData.receiveEpoch;
+		local = localData;
+		previousLocal = previousLocalData;
+		referencePosition = new Coordinate(localData.absoluteLocation);
+		
+		// Rank local satellites from highest to lowest elevation for reference satellite selection
+		final ArrayList<Entry<Integer, SatelliteObservation>> rankedObservations = new ArrayList<Entry<Integer, SatelliteObservation>>(local.observations.getFullSatelliteCollection());
+		Collections.sort(rankedObservations, new Comparator<Entry<Integer, SatelliteObservation>>()
+		{
+			@Override
+			public int compare(Entry<Integer, SatelliteObservation> lhs, Entry<Integer, SatelliteObservation> rhs)
+			{
+				int comparison = Double.compare(rhs.getValue().ephemerisDatum.elevation, lhs.getValue().ephemerisDatum.elevation);
+				return (comparison != 0) ? comparison : (lhs.getKey() - rhs.getKey());
+			}
+		});
+		satellitesByElevation = new int[rankedObservations.size()];
+		
+		// Store local carrier ranges and satellite ranges from the reference position
+		int index = 0;
+		for (final Entry<Integer, SatelliteObservation> entry : rankedObservations)
+		{
+			int PRN = entry.getKey();
+			SatelliteObservation localObs = entry.getValue();
+			satellitesByElevation[index++] = PRN;
+			hasLocal[PRN] = true;
+			localHalfCycleSlip[PRN] = localObs.potentialHalfCycleSlip;
+			localCycleSlip[PRN] = localObs.cycleSlips;
+			localCarrierRange[PRN] = localObs.carrierRange;
+			localSatelliteRange[PRN] = rangeFromReference(localObs);
+			localSignalWeight[PRN] = (localObs.signalStrength - GpsConstants.MIN_SIGNAL_STRENGTH) / 44.0;
+			
+			SatelliteObservation previousLocalObs = (previousLocal != null) ? previousLocal.observations.getSatelliteData(PRN) : null;
+			if (previousLocalObs != null)
+			{
+				hasPreviousLocal[PRN] = true;
+				previousLocalHalfCycleSlip[PRN] = previousLocalObs.potentialHalfCycleSlip;
+				previousLocalCarrierRange[PRN] = previousLocalObs.carrierRange;
+				previousLocalSatelliteRange[PRN] = rangeFromReference(previousLocalObs);
+			}
+		}
+	}
+	
+	private double rangeFromReference(final SatelliteObservation observation)
+	{
+		double xDiff = observation.ephemerisDatum.X - referencePosition.X;
+		double yDiff = observation.ephemerisDatum.Y - referencePosition.Y;
+		double zDiff = observation.ephemerisDatum.Z - referencePosition.Z;
+		return Math.sqrt(xDiff*xDiff + yDiff*yDiff + zDiff*zDiff);
+	}
+}
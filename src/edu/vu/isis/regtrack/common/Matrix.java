@@ -1401,6 +1401,41 @@ public final class Matrix
 			for (int j = i + 1; j < numCols; ++j)
 				resultMatrix.data[i][j] = 0.0;
 	}
+	
+	// Solve A*X = B using this matrix as the lower triangular Cholesky factor of A
+	//   (L*L^T*X = B, where B is overwritten with X)
+	public Matrix choleskySolve(Matrix B)
+	{
+		Matrix resultMatrix = new Matrix(B);
+		choleskySolveInPlace(resultMatrix);
+		return resultMatrix;
+	}
+	public void choleskySolveInPlace(Matrix B)
+	{
+		double total;
+		
+		for (int col = 0; col < B.numCols; ++col)
+		{
+			// Forward substitution (L*Y = B)
+			for (int i = 0; i < numRows; ++i)
+			{
+				total = B.data[i][col];
+				for (int k = 0; k < i; ++k)
+					total -= (data[i][k] * B.data[k][col]);
+				B.data[i][col] = total / data[i][i];
+			}
+			
+			// Back substitution (L^T*X = Y)
+			for (int i = numRows - 1; i >= 0; --i)
+			{
+				total = B.data[i][col];
+				for (int k = i + 1; k < numRows; ++k)
+					total -= (data[k][i] * B.data[k][col]);
+				B.data[i][col] = total / data[i][i];
+			}
+		}
+	}
+	
 	public Matrix getLowerCholeskyDecompLDL(Matrix D)
 	{
 		Matrix L = new Matrix(numRows, numCols), Q = new Matrix(this);
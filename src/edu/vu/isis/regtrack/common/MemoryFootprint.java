@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+// Approximate heap sizes (in bytes) of the objects retained per remote receiver, assuming a 64-bit JVM with compressed
+//   references and 8-byte object alignment
+public final class MemoryFootprint
+{
+	public static final long OBJECT_HEADER_BYTES = 12l;
+	public static final long ARRAY_HEADER_BYTES = 16l;
+	public static final long REFERENCE_BYTES = 4l;
+	
+	// Fixed sizes of frequently retained objects
+	public static final long COORDINATE_BYTES = align(OBJECT_HEADER_BYTES + 6l*8l);
+	public static final long GPS_TIME_BYTES = align(OBJECT_HEADER_BYTES + 8l + 8l);
+	public static final long EPHEMERIS_DATUM_BYTES = align(OBJECT_HEADER_BYTES + 3l*REFERENCE_BYTES + 8l + 7l*4l + 36l*8l + 6l) + 2l*GPS_TIME_BYTES;
+	public static final long SATELLITE_OBSERVATION_BYTES = align(OBJECT_HEADER_BYTES + REFERENCE_BYTES + 4l*8l + 2l) + EPHEMERIS_DATUM_BYTES;
+	public static final long HASH_MAP_ENTRY_BYTES = align(OBJECT_HEADER_BYTES + 4l + 3l*REFERENCE_BYTES) + REFERENCE_BYTES;
+	
+	public static long align(long bytes) { return (bytes + 7l) & ~7l; }
+	public static long doubleArrayBytes(int length) { return align(ARRAY_HEADER_BYTES + 8l*length); }
+	public static long intArrayBytes(int length) { return align(ARRAY_HEADER_BYTES + 4l*length); }
+	public static long booleanArrayBytes(int length) { return align(ARRAY_HEADER_BYTES + length); }
+	public static long matrixBytes(int rows, int cols) { return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES + 8l) + align(ARRAY_HEADER_BYTES + REFERENCE_BYTES*rows) + rows*doubleArrayBytes(cols); }
+}
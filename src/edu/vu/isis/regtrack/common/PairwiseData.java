@@ -18,106 +18,87 @@
 
 package edu.vu.isis.regtrack.common;
 
-import java.util.Map.Entry;
-import java.util.TreeMap;
-
 import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
 import edu.vu.isis.messaging.RLMessageType;
 import edu.vu.isis.messaging.RLPassableDataType;
 
 public final class PairwiseData extends RLPassableDataType
 {
-	public static final class ManipulatedData
-	{
-		public double singleDifferenceCarrierRange;
-		public double doubleDifferenceCarrierRange;
-		public double doubleDifferenceTemporalCarrierRange;
-		public boolean isTemporallyValid = false, potentialCycleSlips = false;
-		public boolean halfCycleAmbiguityResolutionRequired;
-		
-		public ManipulatedData(boolean potentialHalfCycleSlip, boolean potentialCycleSlip)
-		{
-			halfCycleAmbiguityResolutionRequired = potentialHalfCycleSlip;
-			potentialCycleSlips = potentialCycleSlip;
-		}
-		
-		public ManipulatedData(final ManipulatedData other)
-		{
-			singleDifferenceCarrierRange = other.singleDifferenceCarrierRange;
-			doubleDifferenceCarrierRange = other.doubleDifferenceCarrierRange;
-			doubleDifferenceTemporalCarrierRange = other.doubleDifferenceTemporalCarrierRange;
-			isTemporallyValid = other.isTemporallyValid;
-			potentialCycleSlips = other.potentialCycleSlips;
-			halfCycleAmbiguityResolutionRequired = other.halfCycleAmbiguityResolutionRequired;
-		}
-	};
-	
+	// Observations are read-only references to already-published epochs and must not be modified
 	public final long receiveEpoch;
+	public final LocalEpochContext localContext;
 	public final ProcessedData local, previousLocal;
 	public final ProcessedData remote, previousRemote;
 	public final boolean hasPreviousData;
 	public final Coordinate referencePosition;
 	public int referenceSatellite = 0;
-	public final TreeMap<Integer, ManipulatedData> manipulatedData = new TreeMap<Integer, ManipulatedData>();
 	
-	public PairwiseData(long commonTime, final ProcessedData localData, final ProcessedData remoteData, final ProcessedData previousLocalData, final ProcessedData previousRemoteData)
+	// Differenced data indexed by PRN, valid only for the first numCommonSatellites entries in commonSatellites
+	public final int[] commonSatellites;
+	public int numCommonSatellites = 0;
+	public final double[] singleDifferenceCarrierRange, doubleDifferenceCarrierRange, doubleDifferenceTemporalCarrierRange;
+	public final boolean[] isTemporallyValid, potentialCycleSlips, halfCycleAmbiguityResolutionRequired;
+	
+	public PairwiseData(final LocalEpochContext sharedLocalContext, final ProcessedData remoteData, final ProcessedData previousRemoteData)
 	{
 		super(RLMessageType.PAIRWISE_DATA);
 		
-		receiveEpoch = commonTime;
-		referencePosition = new Coordinate(localData.absoluteLocation);
-		hasPreviousData = (previousLocalData != null) && (previousRemoteData != null);
-		local = new ProcessedData(localData);
-		remote = new ProcessedData(remoteData);
-		previousLocal = hasPreviousData ? new ProcessedData(previousLocalData) : null;
-		previousRemote = hasPreviousData ? new ProcessedData(previousRemoteData) : null;
+		// Local-side terms are shared by all pairs formed at this epoch and must not be modified
+		localContext = sharedLocalContext;
+		receiveEpoch = localContext.receiveEpoch;
+		referencePosition = localContext.referencePosition;
+		hasPreviousData = (localContext.previousLocal != null) && (previousRemoteData != null);
+		local = localContext.local;
+		remote = remoteData;
+		previousLocal = hasPreviousData ? localContext.previousLocal : null;
+		previousRemote = hasPreviousData ? previousRemoteData : null;
+		commonSatellites = new int[localContext.satellitesByElevation.length];
+		singleDifferenceCarrierRange = new double[GpsConstants.MAX_PRN+1];
+		doubleDifferenceCarrierRange = new double[GpsConstants.MAX_PRN+1];
+		doubleDifferenceTemporalCarrierRange = new double[GpsConstants.MAX_PRN+1];
+		isTemporallyValid = new boolean[GpsConstants.MAX_PRN+1];
+		potentialCycleSlips = new boolean[GpsConstants.MAX_PRN+1];
+		halfCycleAmbiguityResolutionRequired = new boolean[GpsConstants.MAX_PRN+1];
 		
-		// Find valid satellites and perform differencing operations
-		double highestElevation = -1.0, highestElevationWithHalfCycleSlip = -1.0;
+		// Find valid satellites and perform differencing operations, visiting local satellites from highest to
+		//   lowest elevation so that the first usable satellite becomes the reference
 		int referenceSatelliteWithHalfCycleSlip = 0;
-		for (Integer PRN : local.observations.getValidSatelliteNumbers())
+		for (int PRN : localContext.satellitesByElevation)
 		{
-			SatelliteObservation remoteObs = remote.observations.getSatelliteData(PRN), localObs = local.observations.getSatelliteData(PRN);
+			SatelliteObservation remoteObs = remote.observations.getSatelliteData(PRN);
 			if (remoteObs == null)
 				continue;
 			
-			// Created new manipulated data structure and take single-difference of the carrier ranges
-			ManipulatedData newDatum = new ManipulatedData(localObs.potentialHalfCycleSlip || remoteObs.potentialHalfCycleSlip,
-					localObs.cycleSlips || remoteObs.cycleSlips);
-			manipulatedData.put(PRN, newDatum);
-			newDatum.singleDifferenceCarrierRange = remoteObs.carrierRange - localObs.carrierRange;
+			// Take single-difference of the carrier ranges
+			commonSatellites[numCommonSatellites++] = PRN;
+			halfCycleAmbiguityResolutionRequired[PRN] = localContext.localHalfCycleSlip[PRN] || remoteObs.potentialHalfCycleSlip;
+			potentialCycleSlips[PRN] = localContext.localCycleSlip[PRN] || remoteObs.cycleSlips;
+			singleDifferenceCarrierRange[PRN] = remoteObs.carrierRange - localContext.localCarrierRange[PRN];
 			
 			// Determine the highest satellite with no potential half-cycle slips
-			if (!newDatum.halfCycleAmbiguityResolutionRequired && (localObs.ephemerisDatum.elevation > highestElevation))
-			{
-				highestElevation = localObs.ephemerisDatum.elevation;
+			if ((referenceSatellite == 0) && !halfCycleAmbiguityResolutionRequired[PRN])
 				referenceSatellite = PRN;
-			}
-			if (localObs.ephemerisDatum.elevation > highestElevationWithHalfCycleSlip)
-			{
-				highestElevationWithHalfCycleSlip = localObs.ephemerisDatum.elevation;
+			if (referenceSatelliteWithHalfCycleSlip == 0)
 				referenceSatelliteWithHalfCycleSlip = PRN;
-			}
 			
 			// See if data is valid temporally and form temporal double difference
 			SatelliteObservation previousRemoteObs = hasPreviousData ? previousRemote.observations.getSatelliteData(PRN) : null;
-			SatelliteObservation previousLocalObs = hasPreviousData ? previousLocal.observations.getSatelliteData(PRN) : null;
-			if (hasPreviousData && (previousLocalObs != null) && (previousRemoteObs != null) && !newDatum.potentialCycleSlips && 
-					(newDatum.halfCycleAmbiguityResolutionRequired == (previousLocalObs.potentialHalfCycleSlip || previousRemoteObs.potentialHalfCycleSlip)))
+			if (hasPreviousData && localContext.hasPreviousLocal[PRN] && (previousRemoteObs != null) && !potentialCycleSlips[PRN] && 
+					(halfCycleAmbiguityResolutionRequired[PRN] == (localContext.previousLocalHalfCycleSlip[PRN] || previousRemoteObs.potentialHalfCycleSlip)))
 			{
-				newDatum.isTemporallyValid = true;
-				newDatum.doubleDifferenceTemporalCarrierRange = newDatum.singleDifferenceCarrierRange - previousRemoteObs.carrierRange + previousLocalObs.carrierRange;
+				isTemporallyValid[PRN] = true;
+				doubleDifferenceTemporalCarrierRange[PRN] = singleDifferenceCarrierRange[PRN] - previousRemoteObs.carrierRange + localContext.previousLocalCarrierRange[PRN];
 			}
 		}
 		
 		// Perform double differencing operations using the newly identified reference satellite
 		if (referenceSatellite == 0)
 			referenceSatellite = referenceSatelliteWithHalfCycleSlip;
-		ManipulatedData referenceDatum = manipulatedData.get(referenceSatellite);
-		for (final ManipulatedData manipulatedDatum : manipulatedData.values())
+		for (int i = 0; i < numCommonSatellites; ++i)
 		{
-			manipulatedDatum.doubleDifferenceCarrierRange = manipulatedDatum.singleDifferenceCarrierRange - referenceDatum.singleDifferenceCarrierRange;
-			manipulatedDatum.halfCycleAmbiguityResolutionRequired |= referenceDatum.halfCycleAmbiguityResolutionRequired;
+			int PRN = commonSatellites[i];
+			doubleDifferenceCarrierRange[PRN] = singleDifferenceCarrierRange[PRN] - singleDifferenceCarrierRange[referenceSatellite];
+			halfCycleAmbiguityResolutionRequired[PRN] |= halfCycleAmbiguityResolutionRequired[referenceSatellite];
 		}
 	}
 	
@@ -126,15 +107,29 @@ public final class PairwiseData extends RLPassableDataType
 		super(RLMessageType.PAIRWISE_DATA);
 		
 		receiveEpoch = other.receiveEpoch;
-		local = new ProcessedData(other.local);
-		previousLocal = new ProcessedData(other.previousLocal);
-		remote = new ProcessedData(other.remote);
-		previousRemote = new ProcessedData(other.previousRemote);
+		localContext = other.localContext;
+		local = other.local;
+		previousLocal = other.previousLocal;
+		remote = other.remote;
+		previousRemote = other.previousRemote;
 		hasPreviousData = other.hasPreviousData;
-		referencePosition = new Coordinate(other.referencePosition);
+		referencePosition = other.referencePosition;
 		referenceSatellite = other.referenceSatellite;
-		
-		for (final Entry<Integer, ManipulatedData> entry : other.manipulatedData.entrySet())
-			manipulatedData.put(entry.getKey(), new ManipulatedData(entry.getValue()));
+		numCommonSatellites = other.numCommonSatellites;
+		commonSatellites = other.commonSatellites.clone();
+		singleDifferenceCarrierRange = other.singleDifferenceCarrierRange.clone();
+		doubleDifferenceCarrierRange = other.doubleDifferenceCarrierRange.clone();
+		doubleDifferenceTemporalCarrierRange = other.doubleDifferenceTemporalCarrierRange.clone();
+		isTemporallyValid = other.isTemporallyValid.clone();
+		potentialCycleSlips = other.potentialCycleSlips.clone();
+		halfCycleAmbiguityResolutionRequired = other.halfCycleAmbiguityResolutionRequired.clone();
+	}
+	
+	// Approximate heap size of the differenced data owned by this pair (the referenced observations are shared and not included)
+	public long getRetainedBytes()
+	{
+		return MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 13l*MemoryFootprint.REFERENCE_BYTES + 8l + 4l + 4l + 1l) +
+				MemoryFootprint.intArrayBytes(commonSatellites.length) + 3l*MemoryFootprint.doubleArrayBytes(GpsConstants.MAX_PRN+1) +
+				3l*MemoryFootprint.booleanArrayBytes(GpsConstants.MAX_PRN+1);
 	}
 }
@@ -52,4 +52,14 @@ public final class ProcessedData extends RLPassableDataType
 		absoluteLocation = new Coordinate(other.absoluteLocation);
 		observations = new SatelliteObservations(other.observations);
 	}
+	
+	// Approximate heap size of this observation set, excluding the shared receiver ID
+	public long getRetainedBytes()
+	{
+		int numSatellites = observations.getValidSatelliteNumbers().size();
+		return MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 4l*MemoryFootprint.REFERENCE_BYTES + 5l*8l) + MemoryFootprint.COORDINATE_BYTES +
+				MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + MemoryFootprint.REFERENCE_BYTES) + MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 6l*4l) +
+				MemoryFootprint.align(MemoryFootprint.ARRAY_HEADER_BYTES + MemoryFootprint.REFERENCE_BYTES*Math.max(16, Integer.highestOneBit(2*numSatellites))) +
+				(numSatellites * (MemoryFootprint.HASH_MAP_ENTRY_BYTES + MemoryFootprint.SATELLITE_OBSERVATION_BYTES));
+	}
 }
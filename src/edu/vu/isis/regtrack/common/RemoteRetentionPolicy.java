@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+// Retention rules shared by every module which keeps per-remote state: remotes not heard from in the idle timeout are
+//   forgotten, and once the maximum number of remotes is retained, a new remote only replaces the least recently heard
+//   remote which has itself been silent for at least MIN_REPLACEMENT_IDLE_EPOCHS (otherwise the new remote is refused),
+//   so that more active remotes than the maximum can never take turns evicting each other's history
+//     State with work still queued or running is never removed
+public final class RemoteRetentionPolicy
+{
+	public interface RetainedRemote
+	{
+		long getLatestEpoch();
+		boolean hasPendingWork();
+	};
+	
+	public static final int DEFAULT_MAX_REMOTES = 256;
+	public static final long DEFAULT_REMOTE_IDLE_TIMEOUT = 30l;
+	public static final long MIN_REPLACEMENT_IDLE_EPOCHS = GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE;
+	
+	// Member variables
+	private volatile int maxRemotes = DEFAULT_MAX_REMOTES;
+	private volatile long remoteIdleTimeout = DEFAULT_REMOTE_IDLE_TIMEOUT;
+	
+	public int getMaxRemotes() { return maxRemotes; }
+	public void setMaxRemotes(int numRemotes) { maxRemotes = Math.max(numRemotes, 1); }
+	public long getRemoteIdleTimeout() { return remoteIdleTimeout; }
+	public void setRemoteIdleTimeout(long numEpochs) { remoteIdleTimeout = Math.max(numEpochs, GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE); }
+	
+	// Returns the state already retained for the given remote, or else retains and returns the given new state, or returns
+	//   null if the maximum number of remotes is retained and none of them may be replaced yet (creation is serialized on
+	//   the map so that the maximum is never exceeded)
+	public <T extends RetainedRemote> T addRemote(final Map<String, T> remotes, final String remoteID, final T newRemote, long currentEpoch)
+	{
+		synchronized (remotes)
+		{
+			T remote = remotes.get(remoteID);
+			if (remote != null)
+				return remote;
+			while (remotes.size() >= maxRemotes)
+				if (!removeLeastRecentRemote(remotes, currentEpoch))
+					return null;
+			
+			remotes.put(remoteID, newRemote);
+			return newRemote;
+		}
+	}
+	
+	// Removes all remotes not heard from within the idle timeout
+	public <T extends RetainedRemote> void evictIdleRemotes(final Map<String, T> remotes, long currentEpoch)
+	{
+		long oldestEpoch = currentEpoch - remoteIdleTimeout;
+		synchronized (remotes)
+		{
+			Iterator<T> iter = remotes.values().iterator();
+			while (iter.hasNext())
+			{
+				T remote = iter.next();
+				if ((remote.getLatestEpoch() < oldestEpoch) && !remote.hasPendingWork())
+					iter.remove();
+			}
+		}
+	}
+	
+	// Removes idle remotes, followed by replaceable remotes until no more than the maximum number remain (for state which
+	//   is created implicitly rather than through addRemote)
+	public <T extends RetainedRemote> void trimRemotes(final Map<String, T> remotes, long currentEpoch)
+	{
+		evictIdleRemotes(remotes, currentEpoch);
+		synchronized (remotes)
+		{
+			while (remotes.size() > maxRemotes)
+				if (!removeLeastRecentRemote(remotes, currentEpoch))
+					break;
+		}
+	}
+	
+	// Must be called while synchronized on the map
+	private static <T extends RetainedRemote> boolean removeLeastRecentRemote(final Map<String, T> remotes, long currentEpoch)
+	{
+		String leastRecentID = null;
+		long leastRecentEpoch = currentEpoch - MIN_REPLACEMENT_IDLE_EPOCHS + 1l;
+		for (final Entry<String, T> remote : remotes.entrySet())
+			if ((remote.getValue().getLatestEpoch() < leastRecentEpoch) && !remote.getValue().hasPendingWork())
+			{
+				leastRecentEpoch = remote.getValue().getLatestEpoch();
+				leastRecentID = remote.getKey();
+			}
+		if (leastRecentID == null)
+			return false;
+		remotes.remove(leastRecentID);
+		return true;
+	}
+}
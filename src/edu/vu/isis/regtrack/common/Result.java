@@ -27,6 +27,7 @@ public final class Result extends RLPassableDataType
 	public final long gpsEpoch;
 	public final Coordinate relativeResult;
 	public final double accuracy;
+	public final double errorBound;
 	
 	public Result()
 	{
@@ -36,9 +37,17 @@ public final class Result extends RLPassableDataType
 		gpsEpoch = 0l;
 		relativeResult = new Coordinate();
 		accuracy = Double.NaN;
+		errorBound = Double.NaN;
 	}
 	
 	public Result(final String receiverID, final Coordinate result, long epoch, double confidence)
+	{
+		this(receiverID, result, epoch, confidence, Double.NaN);
+	}
+	
+	// Error bound (in meters) is only known for baselines solved through a spanning tree, whether tracked directly from the
+	//   local receiver or composed along a path of tracked baselines (NaN otherwise, or if tracking failed)
+	public Result(final String receiverID, final Coordinate result, long epoch, double confidence, double bound)
 	{
 		super(RLMessageType.RESULT_DATA);
 		
@@ -46,6 +55,7 @@ public final class Result extends RLPassableDataType
 		gpsEpoch = epoch;
 		relativeResult = new Coordinate(result);
 		accuracy = confidence;
+		errorBound = bound;
 	}
 	
 	public Result(final Result other)
@@ -56,5 +66,6 @@ public final class Result extends RLPassableDataType
 		gpsEpoch = other.gpsEpoch;
 		relativeResult = new Coordinate(other.relativeResult);
 		accuracy = other.accuracy;
+		errorBound = other.errorBound;
 	}
 }
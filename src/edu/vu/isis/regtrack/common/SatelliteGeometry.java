@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+// Batch line-of-sight geometry for satellites stored contiguously in primitive arrays (one array per component), written
+//   as branch-free counted loops with no indirection so that the JIT compiler can evaluate several satellites per
+//   instruction on processors with SIMD support, while remaining ordinary scalar code everywhere else
+public final class SatelliteGeometry
+{
+	// Ranges from a receiver displaced by (deltaX, deltaY, deltaZ) from the point that the satellite offsets are relative to
+	public static void computeRanges(final double[] offsetX, final double[] offsetY, final double[] offsetZ, int count,
+			double deltaX, double deltaY, double deltaZ, final double[] ranges)
+	{
+		for (int i = 0; i < count; ++i)
+		{
+			double x = offsetX[i] - deltaX, y = offsetY[i] - deltaY, z = offsetZ[i] - deltaZ;
+			ranges[i] = Math.sqrt(x*x + y*y + z*z);
+		}
+	}
+	
+	// Ranges and unit vectors (the position rows of the range Jacobian) from a receiver displaced by (deltaX, deltaY, deltaZ)
+	//   from the point that the satellite offsets are relative to
+	public static void computeLineOfSight(final double[] offsetX, final double[] offsetY, final double[] offsetZ, int count,
+			double deltaX, double deltaY, double deltaZ, final double[] ranges, final double[] unitX, final double[] unitY, final double[] unitZ)
+	{
+		for (int i = 0; i < count; ++i)
+		{
+			double x = offsetX[i] - deltaX, y = offsetY[i] - deltaY, z = offsetZ[i] - deltaZ;
+			double range = Math.sqrt(x*x + y*y + z*z);
+			ranges[i] = range;
+			unitX[i] = x / range;
+			unitY[i] = y / range;
+			unitZ[i] = z / range;
+		}
+	}
+	
+	// Residuals of the form (range + per-satellite term + common term)
+	public static void computeResiduals(final double[] ranges, final double[] terms, double commonTerm, int count, final double[] residuals)
+	{
+		for (int i = 0; i < count; ++i)
+			residuals[i] = ranges[i] + terms[i] + commonTerm;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+// Set of satellite PRNs (0-127) stored as a pair of bitmasks, allowing constant-time membership tests
+//   and updates without any boxing or allocation
+public final class SatelliteMask
+{
+	public static final int MAX_SATELLITE_NUMBER = 127;
+	
+	// Member variables
+	private long lowerMask = 0l, upperMask = 0l;
+	
+	public SatelliteMask() {}
+	public SatelliteMask(final SatelliteMask other) { setMask(other); }
+	
+	public void setMask(final SatelliteMask other)
+	{
+		lowerMask = other.lowerMask;
+		upperMask = other.upperMask;
+	}
+	
+	public void add(int PRN)
+	{
+		if ((PRN < 0) || (PRN > MAX_SATELLITE_NUMBER))
+			return;
+		if (PRN < 64)
+			lowerMask |= (1l << PRN);
+		else
+			upperMask |= (1l << (PRN - 64));
+	}
+	
+	public void remove(int PRN)
+	{
+		if ((PRN < 0) || (PRN > MAX_SATELLITE_NUMBER))
+			return;
+		if (PRN < 64)
+			lowerMask &= ~(1l << PRN);
+		else
+			upperMask &= ~(1l << (PRN - 64));
+	}
+	
+	public boolean contains(int PRN)
+	{
+		if ((PRN < 0) || (PRN > MAX_SATELLITE_NUMBER))
+			return false;
+		return (PRN < 64) ? ((lowerMask & (1l << PRN)) != 0l) : ((upperMask & (1l << (PRN - 64))) != 0l);
+	}
+	
+	public void clear()
+	{
+		lowerMask = 0l;
+		upperMask = 0l;
+	}
+	
+	public boolean isEmpty() { return (lowerMask == 0l) && (upperMask == 0l); }
+	public int size() { return Long.bitCount(lowerMask) + Long.bitCount(upperMask); }
+	public int commonSize(final SatelliteMask other) { return Long.bitCount(lowerMask & other.lowerMask) + Long.bitCount(upperMask & other.upperMask); }
+}
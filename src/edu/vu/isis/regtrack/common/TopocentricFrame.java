@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
+
+// East-north-up basis at a receiver's position, rebuilt only when the receiver moves further than the update
+//   distance from the position at which the basis was last computed (the basis rotates by only about 1.6E-5 radians
+//   per 100 meters of horizontal movement), so that elevations and azimuths of all satellites can be computed without
+//   any square roots or allocations beyond the line-of-sight range
+public final class TopocentricFrame
+{
+	public static final double DEFAULT_UPDATE_DISTANCE = 100.0;
+	
+	// Member variables
+	private final double updateDistanceSquared;
+	private double originX = 0.0, originY = 0.0, originZ = 0.0;
+	private double eastX = 0.0, eastY = 0.0, northX = 0.0, northY = 0.0, northZ = 0.0, upX = 0.0, upY = 0.0, upZ = 0.0;
+	private boolean isValid = false;
+	
+	// Constructors
+	public TopocentricFrame() { this(DEFAULT_UPDATE_DISTANCE); }
+	public TopocentricFrame(double updateDistance) { updateDistanceSquared = updateDistance * updateDistance; }
+	
+	public boolean isValid() { return isValid; }
+	public void invalidate() { isValid = false; }
+	
+	// Rebuilds the basis if the given position has moved beyond the update distance (returns true if rebuilt)
+	public boolean update(final Coordinate position)
+	{
+		double diffX = position.X - originX, diffY = position.Y - originY, diffZ = position.Z - originZ;
+		if (isValid && ((diffX*diffX + diffY*diffY + diffZ*diffZ) <= updateDistanceSquared))
+			return false;
+		
+		double p = Math.sqrt(position.X*position.X + position.Y*position.Y);
+		double R = Math.sqrt(p*p + position.Z*position.Z);
+		if ((p == 0.0) || (R == 0.0))
+		{
+			isValid = false;
+			return false;
+		}
+		
+		double RInv = 1.0 / R, pInv = 1.0 / p;
+		originX = position.X;
+		originY = position.Y;
+		originZ = position.Z;
+		eastX = -position.Y * pInv;
+		eastY = position.X * pInv;
+		northX = (-position.X * position.Z) * pInv * RInv;
+		northY = (-position.Y * position.Z) * pInv * RInv;
+		northZ = p * RInv;
+		upX = position.X * RInv;
+		upY = position.Y * RInv;
+		upZ = position.Z * RInv;
+		isValid = true;
+		return true;
+	}
+	
+	// Elevation and azimuth of a satellite as seen from the given position (which should be the position most recently
+	//   passed to update), matching PreProcessingAlgorithms.calculateElevationAndAzimuth
+	public void calculateElevationAndAzimuth(final Coordinate position, final EphemerisDatum ephDatum)
+	{
+		double offsetX = ephDatum.X - position.X, offsetY = ephDatum.Y - position.Y, offsetZ = ephDatum.Z - position.Z;
+		double rangeInv = 1.0 / Math.sqrt(offsetX*offsetX + offsetY*offsetY + offsetZ*offsetZ);
+		double unitX = offsetX * rangeInv, unitY = offsetY * rangeInv, unitZ = offsetZ * rangeInv;
+		double eastComponent = (unitX*eastX) + (unitY*eastY);
+		double northComponent = (unitX*northX) + (unitY*northY) + (unitZ*northZ);
+		
+		ephDatum.elevation = Math.abs(Math.asin((unitX*upX) + (unitY*upY) + (unitZ*upZ)));
+		ephDatum.azimuth = Math.atan(eastComponent / northComponent);
+		
+		if (northComponent < 0.0)
+			ephDatum.azimuth += GpsConstants.PI;
+		else if ((northComponent > 0.0) && (eastComponent < 0.0))
+			ephDatum.azimuth += 2.0 * GpsConstants.PI;
+	}
+	
+	// Updates the basis if necessary and computes the elevations and azimuths of every satellite in the given observations
+	public void calculateElevationsAndAzimuths(final Coordinate position, final SatelliteObservations observations)
+	{
+		update(position);
+		for (final SatelliteObservation satDatum : observations.getSatelliteObservations())
+			calculateElevationAndAzimuth(position, satDatum.ephemerisDatum);
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.common;
+
+// Fixed-size (3 or 4 parameter) weighted least-squares solver which accumulates the normal equations
+//   (H^T*W*H and H^T*W*r) one observation at a time and solves them using an in-place Cholesky
+//   factorization, so that repeated solves do not allocate any objects
+public final class WeightedLeastSquares
+{
+	public static final int MAX_PARAMETERS = 4;
+	
+	// Member variables (all square matrices are stored row-major with a stride of MAX_PARAMETERS)
+	private final double[] normalMatrix = new double[MAX_PARAMETERS*MAX_PARAMETERS];
+	private final double[] normalVector = new double[MAX_PARAMETERS];
+	private final double[] choleskyFactor = new double[MAX_PARAMETERS*MAX_PARAMETERS];
+	private final double[] solution = new double[MAX_PARAMETERS];
+	private final double[] updateVector = new double[MAX_PARAMETERS];
+	private int numParameters = MAX_PARAMETERS, numObservations = 0;
+	private boolean isFactored = false;
+	
+	public int getNumParameters() { return numParameters; }
+	public int getNumObservations() { return numObservations; }
+	public double getSolution(int index) { return solution[index]; }
+	
+	public void reset(int parameters)
+	{
+		numParameters = Math.min(Math.max(parameters, 1), MAX_PARAMETERS);
+		numObservations = 0;
+		isFactored = false;
+		for (int i = 0; i < (MAX_PARAMETERS*MAX_PARAMETERS); ++i)
+			normalMatrix[i] = 0.0;
+		for (int i = 0; i < MAX_PARAMETERS; ++i)
+		{
+			normalVector[i] = 0.0;
+			solution[i] = 0.0;
+		}
+	}
+	
+	// Adds a single observation row (h0...h3) with the given residual and weight (only the
+	//   first numParameters coefficients are used)
+	public void addObservation(double h0, double h1, double h2, double h3, double residual, double weight)
+	{
+		accumulate(h0, h1, h2, h3, residual, weight);
+		++numObservations;
+		isFactored = false;
+	}
+	
+	// Removes an observation that was previously added (using the exact same coefficients) from the most recent
+	//   solution by a rank-one downdate of the existing Cholesky factor, and re-solves without refactoring
+	//   (returns false if there is no existing factorization or the downdated system is no longer positive definite)
+	public boolean removeObservation(double h0, double h1, double h2, double h3, double residual, double weight)
+	{
+		if (!isFactored)
+			return false;
+		
+		accumulate(h0, h1, h2, h3, residual, -weight);
+		--numObservations;
+		isFactored = rankOneModify(h0, h1, h2, h3, weight, false);
+		return isFactored && substitute();
+	}
+	
+	// Adds an observation to the most recent solution by a rank-one update of the existing Cholesky factor,
+	//   and re-solves without refactoring
+	public boolean restoreObservation(double h0, double h1, double h2, double h3, double residual, double weight)
+	{
+		if (!isFactored)
+			return false;
+		
+		accumulate(h0, h1, h2, h3, residual, weight);
+		++numObservations;
+		isFactored = rankOneModify(h0, h1, h2, h3, weight, true);
+		return isFactored && substitute();
+	}
+	
+	private void accumulate(double h0, double h1, double h2, double h3, double residual, double weight)
+	{
+		double wh0 = weight*h0, wh1 = weight*h1, wh2 = weight*h2, wh3 = weight*h3;
+		
+		// Accumulate the upper triangle of the normal matrix
+		normalMatrix[0] += wh0*h0;
+		normalMatrix[1] += wh0*h1;
+		normalMatrix[2] += wh0*h2;
+		normalMatrix[5] += wh1*h1;
+		normalMatrix[6] += wh1*h2;
+		normalMatrix[10] += wh2*h2;
+		normalVector[0] += wh0*residual;
+		normalVector[1] += wh1*residual;
+		normalVector[2] += wh2*residual;
+		if (numParameters == MAX_PARAMETERS)
+		{
+			normalMatrix[3] += wh0*h3;
+			normalMatrix[7] += wh1*h3;
+			normalMatrix[11] += wh2*h3;
+			normalMatrix[15] += wh3*h3;
+			normalVector[3] += wh3*residual;
+		}
+	}
+	
+	// Returns false if the normal matrix is not positive definite (too few or degenerate observations)
+	public boolean solve()
+	{
+		// Factor the normal matrix as L*L^T
+		for (int j = 0; j < numParameters; ++j)
+		{
+			double diagonal = normalMatrix[j*MAX_PARAMETERS + j];
+			for (int k = 0; k < j; ++k)
+				diagonal -= choleskyFactor[j*MAX_PARAMETERS + k] * choleskyFactor[j*MAX_PARAMETERS + k];
+			if (!(diagonal > 0.0))
+				return false;
+			
+			double pivot = Math.sqrt(diagonal);
+			choleskyFactor[j*MAX_PARAMETERS + j] = pivot;
+			for (int i = j + 1; i < numParameters; ++i)
+			{
+				double value = normalMatrix[j*MAX_PARAMETERS + i];
+				for (int k = 0; k < j; ++k)
+					value -= choleskyFactor[i*MAX_PARAMETERS + k] * choleskyFactor[j*MAX_PARAMETERS + k];
+				choleskyFactor[i*MAX_PARAMETERS + j] = value / pivot;
+			}
+		}
+		
+		isFactored = true;
+		return substitute();
+	}
+	
+	private boolean rankOneModify(double h0, double h1, double h2, double h3, double weight, boolean update)
+	{
+		// Update or downdate L such that L*L^T = L*L^T +/- (w*h*h^T), following Matrix.choleskyUpdate but operating in place
+		double scale = Math.sqrt(weight);
+		updateVector[0] = scale * h0;
+		updateVector[1] = scale * h1;
+		updateVector[2] = scale * h2;
+		updateVector[3] = scale * h3;
+		for (int k = 0; k < numParameters; ++k)
+		{
+			double diagonal = choleskyFactor[k*MAX_PARAMETERS + k];
+			double newDiagonal = update ? ((diagonal * diagonal) + (updateVector[k] * updateVector[k])) : ((diagonal * diagonal) - (updateVector[k] * updateVector[k]));
+			if (!(newDiagonal > 0.0))
+				return false;
+			
+			newDiagonal = Math.sqrt(newDiagonal);
+			double c = newDiagonal / diagonal, s = updateVector[k] / diagonal;
+			choleskyFactor[k*MAX_PARAMETERS + k] = newDiagonal;
+			for (int i = k + 1; i < numParameters; ++i)
+			{
+				choleskyFactor[i*MAX_PARAMETERS + k] = update ? ((choleskyFactor[i*MAX_PARAMETERS + k] + (s * updateVector[i])) / c) :
+					((choleskyFactor[i*MAX_PARAMETERS + k] - (s * updateVector[i])) / c);
+				updateVector[i] = (c * updateVector[i]) - (s * choleskyFactor[i*MAX_PARAMETERS + k]);
+			}
+		}
+		
+		return true;
+	}
+	
+	private boolean substitute()
+	{
+		// Forward substitution (L*y = H^T*W*r)
+		for (int i = 0; i < numParameters; ++i)
+		{
+			double value = normalVector[i];
+			for (int k = 0; k < i; ++k)
+				value -= choleskyFactor[i*MAX_PARAMETERS + k] * solution[k];
+			solution[i] = value / choleskyFactor[i*MAX_PARAMETERS + i];
+		}
+		
+		// Back substitution (L^T*x = y)
+		for (int i = numParameters - 1; i >= 0; --i)
+		{
+			double value = solution[i];
+			for (int k = i + 1; k < numParameters; ++k)
+				value -= choleskyFactor[k*MAX_PARAMETERS + i] * solution[k];
+			solution[i] = value / choleskyFactor[i*MAX_PARAMETERS + i];
+		}
+		
+		for (int i = 0; i < numParameters; ++i)
+			if (Double.isNaN(solution[i]) || Double.isInfinite(solution[i]))
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.framework;
+
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-process broadcast network connecting any number of RegLocFramework instances through
+//   LoopbackNetworkInterfaces, with configurable latency, jitter, loss, reordering, and bandwidth
+public final class LoopbackNetworkFabric
+{
+	// Member variables
+	private final CopyOnWriteArrayList<LoopbackNetworkInterface> attachedInterfaces = new CopyOnWriteArrayList<LoopbackNetworkInterface>();
+	private final ScheduledExecutorService deliveryScheduler;
+	private final Random random = new Random();
+	private volatile double latencyMS = 0.0, jitterMS = 0.0, lossProbability = 0.0;
+	private volatile double reorderProbability = 0.0, reorderDelayMS = 0.0;
+	private volatile long bandwidthBytesPerSecond = 0l;
+	private volatile boolean deliverToSender = false;
+	
+	// Network statistics
+	private final AtomicLong packetsSent = new AtomicLong(0l), packetsDelivered = new AtomicLong(0l), packetsDropped = new AtomicLong(0l);
+	private final AtomicLong bytesDelivered = new AtomicLong(0l), totalDeliveryLatencyNS = new AtomicLong(0l), maxDeliveryLatencyNS = new AtomicLong(0l);
+	
+	// Constructors
+	public LoopbackNetworkFabric() { this(Runtime.getRuntime().availableProcessors()); }
+	public LoopbackNetworkFabric(int numDeliveryThreads)
+	{
+		deliveryScheduler = Executors.newScheduledThreadPool(Math.max(1, numDeliveryThreads), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread deliveryThread = new Thread(runnable, "LoopbackNetworkFabric");
+				deliveryThread.setDaemon(true);
+				return deliveryThread;
+			}
+		});
+	}
+	
+	// Create a new network interface attached to this fabric, to be connected to a framework as its "NetworkInterface"
+	public LoopbackNetworkInterface createInterface() { return new LoopbackNetworkInterface(this); }
+	
+	// Network condition settings
+	public void setLatency(double meanLatencyMS, double maxJitterMS) { latencyMS = Math.max(0.0, meanLatencyMS); jitterMS = Math.max(0.0, maxJitterMS); }
+	public void setLossProbability(double probability) { lossProbability = Math.min(Math.max(probability, 0.0), 1.0); }
+	public void setReordering(double probability, double extraDelayMS) { reorderProbability = Math.min(Math.max(probability, 0.0), 1.0); reorderDelayMS = Math.max(0.0, extraDelayMS); }
+	public void setBandwidthCap(long bytesPerSecond) { bandwidthBytesPerSecond = Math.max(0l, bytesPerSecond); }
+	public void setDeliverToSender(boolean echoToSender) { deliverToSender = echoToSender; }
+	
+	// Network statistics
+	public int getNumAttachedInterfaces() { return attachedInterfaces.size(); }
+	public long getPacketsSent() { return packetsSent.get(); }
+	public long getPacketsDelivered() { return packetsDelivered.get(); }
+	public long getPacketsDropped() { return packetsDropped.get(); }
+	public long getBytesDelivered() { return bytesDelivered.get(); }
+	public double getMeanDeliveryLatencyMS() { long delivered = packetsDelivered.get(); return (delivered == 0l) ? 0.0 : (totalDeliveryLatencyNS.get() * 1.0e-6 / delivered); }
+	public double getMaxDeliveryLatencyMS() { return maxDeliveryLatencyNS.get() * 1.0e-6; }
+	public void resetStatistics()
+	{
+		packetsSent.set(0l);
+		packetsDelivered.set(0l);
+		packetsDropped.set(0l);
+		bytesDelivered.set(0l);
+		totalDeliveryLatencyNS.set(0l);
+		maxDeliveryLatencyNS.set(0l);
+	}
+	
+	public void shutdown()
+	{
+		attachedInterfaces.clear();
+		deliveryScheduler.shutdownNow();
+	}
+	
+	void attachInterface(final LoopbackNetworkInterface networkInterface) { attachedInterfaces.addIfAbsent(networkInterface); }
+	void detachInterface(final LoopbackNetworkInterface networkInterface) { attachedInterfaces.remove(networkInterface); }
+	
+	void broadcastPacket(final LoopbackNetworkInterface sender, final byte[] packet)
+	{
+		long sendTime = System.nanoTime(), departureTime = sendTime;
+		packetsSent.incrementAndGet();
+		
+		// Serialize the packet onto the sender's uplink if its bandwidth is capped
+		long bytesPerSecond = bandwidthBytesPerSecond;
+		if (bytesPerSecond > 0l)
+		{
+			long transmissionTime = (packet.length * 1000000000l) / bytesPerSecond;
+			synchronized (sender)
+			{
+				departureTime = Math.max(sendTime, sender.uplinkAvailableTime) + transmissionTime;
+				sender.uplinkAvailableTime = departureTime;
+			}
+		}
+		
+		// Schedule an independent delivery to every other attached receiver
+		for (final LoopbackNetworkInterface receiver : attachedInterfaces)
+		{
+			if ((receiver == sender) && !deliverToSender)
+				continue;
+			
+			double delayMS, randomLoss, randomReorder;
+			synchronized (random)
+			{
+				randomLoss = random.nextDouble();
+				randomReorder = random.nextDouble();
+				delayMS = latencyMS + ((jitterMS > 0.0) ? ((2.0 * random.nextDouble()) - 1.0) * jitterMS : 0.0);
+			}
+			if (randomLoss < lossProbability)
+			{
+				packetsDropped.incrementAndGet();
+				continue;
+			}
+			if (randomReorder < reorderProbability)
+				delayMS += reorderDelayMS;
+			
+			long deliveryDelay = (departureTime - sendTime) + (long)(Math.max(delayMS, 0.0) * 1000000.0);
+			schedulePacketDelivery(receiver, packet, sendTime, deliveryDelay);
+		}
+	}
+	
+	private void schedulePacketDelivery(final LoopbackNetworkInterface receiver, final byte[] packet, final long sendTime, long deliveryDelayNS)
+	{
+		Runnable delivery = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!receiver.deliverPacket(packet))
+				{
+					packetsDropped.incrementAndGet();
+					return;
+				}
+				
+				// Update delivery statistics
+				long latency = System.nanoTime() - sendTime, maxLatency;
+				packetsDelivered.incrementAndGet();
+				bytesDelivered.addAndGet(packet.length);
+				totalDeliveryLatencyNS.addAndGet(latency);
+				do { maxLatency = maxDeliveryLatencyNS.get(); } while ((latency > maxLatency) && !maxDeliveryLatencyNS.compareAndSet(maxLatency, latency));
+			}
+		};
+		
+		try
+		{
+			if (deliveryDelayNS <= 0l)
+				deliveryScheduler.execute(delivery);
+			else
+				deliveryScheduler.schedule(delivery, deliveryDelayNS, TimeUnit.NANOSECONDS);
+		}
+		catch (Exception e) { packetsDropped.incrementAndGet(); }
+	}
+}
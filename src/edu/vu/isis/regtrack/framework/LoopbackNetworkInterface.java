@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.framework;
+
+import edu.vu.isis.regtrack.common.ByteStream;
+import edu.vu.isis.messaging.RLInterfaceImplementation;
+import edu.vu.isis.messaging.RLMessage;
+import edu.vu.isis.messaging.RLMessageType;
+
+public final class LoopbackNetworkInterface extends RLInterfaceImplementation
+{
+	// Member variables
+	private final LoopbackNetworkFabric networkFabric;
+	private volatile boolean isOpen = false;
+	long uplinkAvailableTime = 0l;
+	
+	// Constructor
+	LoopbackNetworkInterface(final LoopbackNetworkFabric fabric)
+	{
+		super();
+		
+		networkFabric = fabric;
+	}
+	
+	@Override
+	public void openInterface()
+	{
+		isOpen = true;
+		networkFabric.attachInterface(this);
+	}
+	
+	@Override
+	public void closeInterface()
+	{
+		networkFabric.detachInterface(this);
+		isOpen = false;
+	}
+	
+	@Override
+	public void handleMessageFromFramework(final RLMessage message)
+	{
+		// Only byte streams are meant to be broadcast over the network
+		if (isOpen && (message.messageType == RLMessageType.BYTE_STREAM))
+			networkFabric.broadcastPacket(this, ((ByteStream)message.data).bytes);
+	}
+	
+	boolean deliverPacket(final byte[] packet)
+	{
+		if (!isOpen)
+			return false;
+		
+		sendMessageToFramework(new RLMessage(new ByteStream(packet)));
+		return true;
+	}
+}
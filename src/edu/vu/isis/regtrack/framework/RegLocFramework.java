@@ -18,21 +18,57 @@
 
 package edu.vu.isis.regtrack.framework;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import edu.vu.isis.messaging.RLFramework;
 import edu.vu.isis.messaging.RLInterface;
 import edu.vu.isis.messaging.RLModule;
+import edu.vu.isis.regtrack.common.AtomicFileWriter;
+import edu.vu.isis.regtrack.common.EphemerisDatum;
+import edu.vu.isis.regtrack.common.GpsConstants;
 import edu.vu.isis.regtrack.modules.dataaggregator.DataAggregator;
 import edu.vu.isis.regtrack.modules.localization.RelativeLocalizer;
+import edu.vu.isis.regtrack.modules.localization.RelativeTrackingFilter.TrackingMode;
+import edu.vu.isis.regtrack.modules.networkmanager.EphemerisExchange;
 import edu.vu.isis.regtrack.modules.networkmanager.NetworkManager;
+import edu.vu.isis.regtrack.modules.networkmanager.NetworkPacketFilter;
+import edu.vu.isis.regtrack.modules.preprocessor.EphemerisStore;
 import edu.vu.isis.regtrack.modules.preprocessor.PreProcessor;
 import edu.vu.isis.regtrack.modules.ubxmanager.UbxManager;
 
 public final class RegLocFramework extends RLFramework
 {
+	// Checkpoints older than these ages (in milliseconds) are not restored: tracking state is only useful if tracking can
+	//   continue without a long outage, whereas broadcast ephemerides remain valid for hours
+	private static final int CHECKPOINT_VERSION = 1;
+	private static final long MAX_TRACKING_CHECKPOINT_AGE = GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE * 1000l;
+	private static final long MAX_EPHEMERIS_CHECKPOINT_AGE = 2l * 3600l * 1000l;
+	
 	private final String receiverID;
 	private final UbxManager ubxManagerModule;
+	private final PreProcessor preProcessorModule;
+	private final NetworkManager networkManagerModule;
+	private final DataAggregator dataAggregatorModule;
+	private final RelativeLocalizer relativeLocalizerModule;
+	private ScheduledExecutorService checkpointExecutor = null;
+	private ScheduledFuture<?> checkpointTask = null;
+	private EphemerisStore ephemerisStore = null;
 	
-	public RegLocFramework(String rcvrID)
+	// Constructors (tracking runs on the process-wide shared worker pool unless another pool is given)
+	public RegLocFramework(String rcvrID) { this(rcvrID, RelativeLocalizer.getSharedWorkerPool()); }
+	public RegLocFramework(String rcvrID, final ExecutorService localizationWorkers)
 	{
 		super();
 		
@@ -41,10 +77,14 @@ public final class RegLocFramework extends RLFramework
 		// Fetch desired modules
 		ubxManagerModule = new UbxManager("UbxManager", receiverID);
 		RLModule ubxManager = createModule("UbxManager", ubxManagerModule);
-		RLModule preProcessor = createModule("PreProcessor", new PreProcessor("PreProcessor", receiverID));
-		RLModule dataAggregator = createModule("DataAggregator", new DataAggregator("DataAggregator", receiverID));
-		RLModule networkManager = createModule("NetworkManager", new NetworkManager("NetworkManager", receiverID));
-		RLModule relativeLocalizer = createModule("LocalizationManager", new RelativeLocalizer("RelativeLocalizer"));
+		preProcessorModule = new PreProcessor("PreProcessor", receiverID);
+		RLModule preProcessor = createModule("PreProcessor", preProcessorModule);
+		dataAggregatorModule = new DataAggregator("DataAggregator", receiverID);
+		RLModule dataAggregator = createModule("DataAggregator", dataAggregatorModule);
+		networkManagerModule = new NetworkManager("NetworkManager", receiverID);
+		RLModule networkManager = createModule("NetworkManager", networkManagerModule);
+		relativeLocalizerModule = new RelativeLocalizer("RelativeLocalizer", localizationWorkers);
+		RLModule relativeLocalizer = createModule("LocalizationManager", relativeLocalizerModule);
 		RLInterface networkInterface = createInterface("NetworkInterface");
 		RLInterface serialInterface = createInterface("SerialInterface");
 		RLInterface outputInterface = createInterface("OutputInterface");
@@ -62,4 +102,159 @@ public final class RegLocFramework extends RLFramework
 	}
 	
 	public void enableLogging(boolean isLoggingEnabled) { ubxManagerModule.enableLogging(isLoggingEnabled); }
+	public void setNetworkPacketFilter(final NetworkPacketFilter packetFilter) { networkManagerModule.setPacketFilter(packetFilter); }
+	public void setSubscriptionRadius(double radius) { dataAggregatorModule.getSpatialSubscription().setRadius(radius); }
+	public void setMaxSubscribedNeighbors(int numNeighbors) { dataAggregatorModule.getSpatialSubscription().setMaxNeighbors(numNeighbors); }
+	public void setTrackingMode(TrackingMode mode) { relativeLocalizerModule.setTrackingMode(mode); }
+	public long getRetainedBytes(final String remoteID) { return dataAggregatorModule.getRetainedBytes(remoteID) + relativeLocalizerModule.getRetainedBytes(remoteID); }
+	
+	public void setMaxRemotes(int numRemotes)
+	{
+		dataAggregatorModule.setMaxRemotes(numRemotes);
+		relativeLocalizerModule.setMaxRemotes(numRemotes);
+	}
+	
+	public void setRemoteIdleTimeout(long numEpochs)
+	{
+		dataAggregatorModule.setRemoteIdleTimeout(numEpochs);
+		relativeLocalizerModule.setRemoteIdleTimeout(numEpochs);
+	}
+	public void enableNetworkSolving(boolean isEnabled) { relativeLocalizerModule.enableNetworkSolving(isEnabled); }
+	public void enableSpanningTreeSolving(boolean isEnabled) { relativeLocalizerModule.enableSpanningTreeSolving(isEnabled); }
+	
+	// Advertises local ephemerides to peers and pushes or adopts any that either side is missing or holds an older version of
+	public void enableEphemerisSharing(boolean isEnabled)
+	{
+		if (!isEnabled)
+		{
+			networkManagerModule.setEphemerisExchange(null);
+			return;
+		}
+		
+		networkManagerModule.setEphemerisExchange(new EphemerisExchange()
+		{
+			@Override
+			public ArrayList<EphemerisDatum> getEphemerides() { return preProcessorModule.getEphemerides(); }
+			@Override
+			public int getNumEphemerides() { return preProcessorModule.getNumEphemerides(); }
+			@Override
+			public boolean offerEphemeris(final EphemerisDatum ephDatum) { return preProcessorModule.offerEphemeris(ephDatum); }
+		});
+	}
+	
+	// Periodically checkpoints the ephemeris table, observation history, and tracking state to the given file
+	public synchronized void enableCheckpointing(final File checkpointFile, long intervalMS)
+	{
+		disableCheckpointing();
+		if (checkpointExecutor == null)
+			checkpointExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread checkpointThread = new Thread(runnable, "RegLocCheckpoint");
+					checkpointThread.setDaemon(true);
+					return checkpointThread;
+				}
+			});
+		checkpointTask = checkpointExecutor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run() { saveCheckpoint(checkpointFile); }
+		}, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void disableCheckpointing()
+	{
+		if (checkpointTask != null)
+			checkpointTask.cancel(false);
+		checkpointTask = null;
+	}
+	
+	// Must be called before the framework starts receiving data: reloads all ephemerides in the given file which are still
+	//   within their fit intervals, and rewrites the file whenever a new ephemeris is received
+	public synchronized void enableEphemerisStore(final File storeFile)
+	{
+		disableEphemerisStore();
+		ephemerisStore = new EphemerisStore(storeFile);
+		preProcessorModule.setEphemerisStore(ephemerisStore, System.currentTimeMillis());
+	}
+	
+	public synchronized void disableEphemerisStore()
+	{
+		if (ephemerisStore != null)
+		{
+			preProcessorModule.setEphemerisStore(null, 0l);
+			ephemerisStore.close();
+		}
+		ephemerisStore = null;
+	}
+	
+	// Releases all threads and files owned by this framework (a shared or injected localization worker pool is left running)
+	public synchronized void shutdown()
+	{
+		disableCheckpointing();
+		if (checkpointExecutor != null)
+			checkpointExecutor.shutdownNow();
+		checkpointExecutor = null;
+		disableEphemerisStore();
+		relativeLocalizerModule.shutdown();
+	}
+	
+	public boolean saveCheckpoint(final File checkpointFile)
+	{
+		return AtomicFileWriter.write(checkpointFile, "checkpoint file", new AtomicFileWriter.Contents()
+		{
+			@Override
+			public void write(DataOutputStream dataStreamOut) throws IOException
+			{
+				dataStreamOut.writeInt(CHECKPOINT_VERSION);
+				dataStreamOut.writeLong(System.currentTimeMillis());
+				preProcessorModule.writeCheckpoint(dataStreamOut);
+				dataAggregatorModule.writeCheckpoint(dataStreamOut);
+				relativeLocalizerModule.writeCheckpoint(dataStreamOut);
+			}
+		});
+	}
+	
+	// Must be called before the framework starts receiving data, returning false if nothing was restored (nothing is
+	//   restored unless every section to be restored has been read successfully)
+	public boolean restoreCheckpoint(final File checkpointFile)
+	{
+		if (!checkpointFile.isFile())
+			return false;
+		
+		DataInputStream dataStreamIn = null;
+		try
+		{
+			dataStreamIn = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+			if (dataStreamIn.readInt() != CHECKPOINT_VERSION)
+				return false;
+			long checkpointAge = System.currentTimeMillis() - dataStreamIn.readLong();
+			if ((checkpointAge < 0l) || (checkpointAge > MAX_EPHEMERIS_CHECKPOINT_AGE))
+				return false;
+			
+			// Only restore the observation history and tracking state if tracking can continue from them
+			ArrayList<Runnable> restoreActions = new ArrayList<Runnable>();
+			restoreActions.add(preProcessorModule.readCheckpoint(dataStreamIn));
+			if (checkpointAge <= MAX_TRACKING_CHECKPOINT_AGE)
+			{
+				restoreActions.add(dataAggregatorModule.readCheckpoint(dataStreamIn));
+				restoreActions.add(relativeLocalizerModule.readCheckpoint(dataStreamIn));
+			}
+			for (final Runnable restoreAction : restoreActions)
+				restoreAction.run();
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error reading checkpoint file " + checkpointFile.getPath() + ": " + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			if (dataStreamIn != null)
+				try { dataStreamIn.close(); } catch (IOException e) {}
+		}
+	}
 }
@@ -18,35 +18,160 @@
 
 package edu.vu.isis.regtrack.modules.dataaggregator;
 
-import java.util.HashMap;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import edu.vu.isis.regtrack.common.DataCodec;
 import edu.vu.isis.regtrack.common.GpsConstants;
+import edu.vu.isis.regtrack.common.LocalEpochContext;
+import edu.vu.isis.regtrack.common.MemoryFootprint;
 import edu.vu.isis.regtrack.common.PairwiseData;
 import edu.vu.isis.regtrack.common.ProcessedData;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy;
 import edu.vu.isis.messaging.RLMessage;
 import edu.vu.isis.messaging.RLMessageType;
 import edu.vu.isis.messaging.RLModule;
 
 public final class DataAggregator extends RLModule
 {
+	private static final class PendingRemoteEpoch
+	{
+		public final long deadline;
+		public final ArrayList<ProcessedData> observations = new ArrayList<ProcessedData>();
+		
+		public PendingRemoteEpoch(long expirationTime) { deadline = expirationTime; }
+	};
+	
+	public static final int DEFAULT_HISTORY_DEPTH = 5;
+	
+	// Member variables
 	private final String receiverID;
+	private final int historyDepth;
 	private final Lock lock = new ReentrantLock(false);
-	private final ArrayBlockingQueue<ProcessedData> localDataQueue = new ArrayBlockingQueue<ProcessedData>(5, true);
-	private final HashMap<String, ArrayBlockingQueue<ProcessedData>> remoteData = new HashMap<String, ArrayBlockingQueue<ProcessedData>>();
+	private final EpochRingBuffer<LocalEpochContext> localData;
+	private final ConcurrentHashMap<String, EpochRingBuffer<ProcessedData>> remoteData = new ConcurrentHashMap<String, EpochRingBuffer<ProcessedData>>();
+	private final TreeMap<Long, PendingRemoteEpoch> pendingRemoteData = new TreeMap<Long, PendingRemoteEpoch>();
+	private final SpatialSubscription spatialSubscription = new SpatialSubscription();
+	private final RemoteRetentionPolicy retentionPolicy = new RemoteRetentionPolicy();
 	
 	// Constructor
 	public DataAggregator(String moduleID, String rcvrID)
+	{
+		this(moduleID, rcvrID, DEFAULT_HISTORY_DEPTH);
+	}
+	
+	public DataAggregator(String moduleID, String rcvrID, int numEpochsToRetain)
 	{
 		super(moduleID);
 		
 		receiverID = rcvrID;
+		historyDepth = numEpochsToRetain;
+		localData = new EpochRingBuffer<LocalEpochContext>(historyDepth);
 		
 		addIncomingMessageType(RLMessageType.PROCESSED_DATA);
 	}
 	
+	public SpatialSubscription getSpatialSubscription() { return spatialSubscription; }
+	public int getHistoryDepth() { return localData.getCapacity(); }
+	
+	// Observation histories are retained according to the shared RemoteRetentionPolicy (data from a new remote is dropped
+	//   while the maximum number of remotes are all active)
+	public RemoteRetentionPolicy getRetentionPolicy() { return retentionPolicy; }
+	public int getMaxRemotes() { return retentionPolicy.getMaxRemotes(); }
+	public void setMaxRemotes(int numRemotes) { retentionPolicy.setMaxRemotes(numRemotes); }
+	public long getRemoteIdleTimeout() { return retentionPolicy.getRemoteIdleTimeout(); }
+	public void setRemoteIdleTimeout(long numEpochs) { retentionPolicy.setRemoteIdleTimeout(numEpochs); }
+	public int getNumRemotes() { return remoteData.size(); }
+	
+	// Approximate heap size of the observation history retained for the given remote receiver
+	public long getRetainedBytes(final String remoteID)
+	{
+		EpochRingBuffer<ProcessedData> remoteHistory = remoteData.get(remoteID);
+		if (remoteHistory == null)
+			return 0l;
+		
+		long retainedBytes = MemoryFootprint.HASH_MAP_ENTRY_BYTES + remoteHistory.getRetainedBytes(), newestEpoch = remoteHistory.getNewestEpoch();
+		for (long epoch = remoteHistory.getOldestRetainedEpoch(); epoch <= newestEpoch; ++epoch)
+		{
+			ProcessedData remoteObservation = remoteHistory.get(epoch);
+			if (remoteObservation != null)
+				retainedBytes += remoteObservation.getRetainedBytes();
+		}
+		return retainedBytes;
+	}
+	
+	// Writes the retained local and remote observation history
+	public void writeCheckpoint(final DataOutputStream dataStreamOut) throws IOException
+	{
+		long newestEpoch = localData.getNewestEpoch(), oldestEpoch = Math.max(localData.getOldestRetainedEpoch(), 1l);
+		ArrayList<ProcessedData> observations = new ArrayList<ProcessedData>();
+		for (long epoch = oldestEpoch; !localData.isEmpty() && (epoch <= newestEpoch); ++epoch)
+		{
+			LocalEpochContext localContext = localData.get(epoch);
+			if (localContext != null)
+				observations.add(localContext.local);
+		}
+		for (final EpochRingBuffer<ProcessedData> remoteHistory : remoteData.values())
+			for (long epoch = oldestEpoch; !localData.isEmpty() && (epoch <= newestEpoch); ++epoch)
+			{
+				ProcessedData remoteObservation = remoteHistory.get(epoch);
+				if (remoteObservation != null)
+					observations.add(remoteObservation);
+			}
+		
+		// Local observations are written first and in epoch order
+		dataStreamOut.writeInt(observations.size());
+		for (final ProcessedData observation : observations)
+		{
+			dataStreamOut.writeLong(observation.receiveEpoch);
+			DataCodec.writeProcessedData(dataStreamOut, observation);
+		}
+	}
+	
+	// Reads history written by writeCheckpoint without applying it, returning the action which restores it (which must be
+	//   run before any processed data arrives, and retains remote history subject to the retention policy)
+	public Runnable readCheckpoint(final DataInputStream dataStreamIn) throws IOException
+	{
+		final ArrayList<ProcessedData> observations = new ArrayList<ProcessedData>();
+		int numObservations = dataStreamIn.readInt();
+		for (int i = 0; i < numObservations; ++i)
+		{
+			long epoch = dataStreamIn.readLong();
+			observations.add(DataCodec.readProcessedData(dataStreamIn, epoch));
+		}
+		
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (final ProcessedData observation : observations)
+				{
+					long epoch = observation.receiveEpoch;
+					if (observation.ID.equals(receiverID))
+					{
+						LocalEpochContext previousLocalContext = localData.get(epoch - 1l);
+						localData.put(epoch, new LocalEpochContext(observation, (previousLocalContext != null) ? previousLocalContext.local : null));
+					}
+					else
+					{
+						EpochRingBuffer<ProcessedData> remoteHistory = remoteData.get(observation.ID);
+						if ((remoteHistory != null) || ((remoteHistory = addRemoteHistory(observation.ID, epoch)) != null))
+							remoteHistory.put(epoch, observation);
+					}
+				}
+			}
+		};
+	}
+	
 	@Override
 	protected void incomingMessageHandler(final RLMessage message)
 	{
@@ -68,84 +193,111 @@ public final class DataAggregator extends RLModule
 	
 	private void processLocalData(final ProcessedData localObservation)
 	{
+		PendingRemoteEpoch readyRemoteObservations = null;
+		
 		// Forward to next modules
 		sendMessageToNextModule(new RLMessage(localObservation), false);
+		
+		// Update the set of remotes we are subscribed to based on our current location
+		spatialSubscription.updateLocalLocation(localObservation);
+		
+		// Compute the local-side differencing terms once for all remotes paired at this epoch
+		LocalEpochContext previousLocalContext = localData.get(localObservation.receiveEpoch - 1l);
+		LocalEpochContext localContext = new LocalEpochContext(localObservation, (previousLocalContext != null) ? previousLocalContext.local : null);
 
 		// Add to local data store for future use
 		lock.lock();
 		try
 		{
 			// Store for later use
-			if (localDataQueue.remainingCapacity() == 0)
-				localDataQueue.poll();
-			localDataQueue.offer(localObservation);
+			localData.put(localObservation.receiveEpoch, localContext);
+			
+			// Release any remote data that was waiting on this epoch, and expire remote data that can no longer be matched
+			readyRemoteObservations = pendingRemoteData.remove(localObservation.receiveEpoch);
+			expirePendingRemoteData(localObservation.receiveEpoch);
 		}
 		finally { lock.unlock(); }
+		
+		// Forget remotes which have been idle for too long
+		retentionPolicy.evictIdleRemotes(remoteData, localObservation.receiveEpoch);
+		spatialSubscription.evictIdleRemotes(localObservation.receiveEpoch - retentionPolicy.getRemoteIdleTimeout());
+		
+		// Pair all newly released remote data with this epoch
+		if (readyRemoteObservations != null)
+			for (ProcessedData remoteObservation : readyRemoteObservations.observations)
+				pairWithLocalData(localContext, remoteObservation);
 	}
 
 	private void processRemoteData(final ProcessedData remoteObservation)
 	{
-		ProcessedData localObservation = null;
-		ProcessedData previousLocalObservation = null, previousRemoteObservation = null;
-		ArrayBlockingQueue<ProcessedData> remoteDataQueue = null;
-		PairwiseData pairwiseData = null;
-		boolean tooNew = true;
+		LocalEpochContext localContext = null;
 		long timeDiff = 0;
 		
+		// Drop remotes that are too far away or not among our nearest neighbors
+		if (!spatialSubscription.acceptRemote(remoteObservation))
+			return;
+		
 		// Find local data for corresponding epoch and previous epoch
-		while (tooNew)
+		lock.lock();
+		try
 		{
-			lock.lock();
-			try
+			if (localData.isEmpty() || (remoteObservation.receiveEpoch - localData.getOldestRetainedEpoch() < 0l))
+				return;
+			localContext = localData.get(remoteObservation.receiveEpoch);
+			timeDiff = remoteObservation.receiveEpoch - localData.getNewestEpoch();
+			
+			// If local data for this epoch has not arrived yet, park the remote data until it is published
+			if ((localContext == null) && (timeDiff > 0l) && (timeDiff <= GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE))
 			{
-				if ((localDataQueue.peek() != null) && (remoteObservation.receiveEpoch - localDataQueue.peek().receiveEpoch < 0l))
-					return;
-				else
+				expirePendingRemoteData(localData.getOldestRetainedEpoch());
+				PendingRemoteEpoch waitingObservations = pendingRemoteData.get(remoteObservation.receiveEpoch);
+				if (waitingObservations == null)
 				{
-					for (ProcessedData datum : localDataQueue)
-					{
-						timeDiff = remoteObservation.receiveEpoch - datum.receiveEpoch;
-						if (timeDiff == 0l)
-							localObservation = datum;
-						else if ((timeDiff - 1l) == 0l)
-							previousLocalObservation = datum;
-					}
+					waitingObservations = new PendingRemoteEpoch(System.nanoTime() + (GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE * 1000000000l));
+					pendingRemoteData.put(remoteObservation.receiveEpoch, waitingObservations);
 				}
+				waitingObservations.observations.add(remoteObservation);
 			}
-			finally { lock.unlock(); }
-			
-			if ((timeDiff <= 0l) || (timeDiff > GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE))
-				tooNew = false;
-			else
-				try { Thread.sleep(1); } catch (InterruptedException e) { return; }
 		}
-		if (localObservation == null)
-			return;
+		finally { lock.unlock(); }
 		
-		// Find remote data for previous epoch
-		remoteDataQueue = remoteData.get(remoteObservation.ID);
-		if (remoteDataQueue == null)
-		{
-			remoteDataQueue = new ArrayBlockingQueue<ProcessedData>(5, true);
-			remoteData.put(remoteObservation.ID, remoteDataQueue);
-		}
-		for (ProcessedData datum : remoteDataQueue)
+		if (localContext != null)
+			pairWithLocalData(localContext, remoteObservation);
+	}
+	
+	// Must be called while holding the lock
+	private void expirePendingRemoteData(long oldestMatchableEpoch)
+	{
+		// Remote data older than the given epoch, or that has been waiting longer than the longest tolerable outage, is discarded
+		long currentTime = System.nanoTime();
+		Iterator<Entry<Long, PendingRemoteEpoch>> iter = pendingRemoteData.entrySet().iterator();
+		while (iter.hasNext())
 		{
-			timeDiff = remoteObservation.receiveEpoch - datum.receiveEpoch;
-			if ((timeDiff - 1l) == 0l)
-			{
-				previousRemoteObservation = datum;
-				break;
-			}
+			Entry<Long, PendingRemoteEpoch> pendingEpoch = iter.next();
+			if ((pendingEpoch.getKey() < oldestMatchableEpoch) || ((currentTime - pendingEpoch.getValue().deadline) > 0l))
+				iter.remove();
 		}
+	}
+	
+	// Returns null if the remote cannot be retained
+	private EpochRingBuffer<ProcessedData> addRemoteHistory(final String remoteID, long currentEpoch)
+	{
+		return retentionPolicy.addRemote(remoteData, remoteID, new EpochRingBuffer<ProcessedData>(historyDepth), currentEpoch);
+	}
+	
+	private void pairWithLocalData(final LocalEpochContext localContext, final ProcessedData remoteObservation)
+	{
+		// Find remote data for previous epoch
+		EpochRingBuffer<ProcessedData> remoteHistory = remoteData.get(remoteObservation.ID);
+		if ((remoteHistory == null) && ((remoteHistory = addRemoteHistory(remoteObservation.ID, remoteObservation.receiveEpoch)) == null))
+			return;
+		ProcessedData previousRemoteObservation = remoteHistory.get(remoteObservation.receiveEpoch - 1l);
 		
 		// Store remote observation for later use
-		if (remoteDataQueue.remainingCapacity() == 0)
-			remoteDataQueue.poll();
-		remoteDataQueue.offer(remoteObservation);
+		remoteHistory.put(remoteObservation.receiveEpoch, remoteObservation);
 		
 		// Create pairwise data and send to localization modules
-		pairwiseData = new PairwiseData(localObservation.receiveEpoch, localObservation, remoteObservation, previousLocalObservation, previousRemoteObservation);
+		PairwiseData pairwiseData = new PairwiseData(localContext, remoteObservation, previousRemoteObservation);
 		sendMessageToNextModule(new RLMessage(pairwiseData));
 	}
 }
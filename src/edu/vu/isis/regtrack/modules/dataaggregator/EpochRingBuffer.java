@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.dataaggregator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.vu.isis.regtrack.common.MemoryFootprint;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy.RetainedRemote;
+
+// Thread-safe, fixed-depth history of per-epoch values indexed by (epoch mod capacity), allowing
+//   constant-time storage and retrieval of any epoch still retained in the buffer
+public final class EpochRingBuffer<T> implements RetainedRemote
+{
+	private static final class Slot<T>
+	{
+		public final long epoch;
+		public final T value;
+		
+		public Slot(long slotEpoch, final T slotValue)
+		{
+			epoch = slotEpoch;
+			value = slotValue;
+		}
+	};
+	
+	// Member variables
+	private final AtomicReferenceArray<Slot<T>> slots;
+	private final AtomicLong newestEpoch = new AtomicLong(0l);
+	private final int capacity;
+	
+	// Constructor
+	public EpochRingBuffer(int depth)
+	{
+		capacity = Math.max(depth, 2);
+		slots = new AtomicReferenceArray<Slot<T>>(capacity);
+	}
+	
+	public int getCapacity() { return capacity; }
+	public boolean isEmpty() { return (newestEpoch.get() == 0l); }
+	public long getNewestEpoch() { return newestEpoch.get(); }
+	public long getOldestRetainedEpoch() { return newestEpoch.get() - capacity + 1l; }
+	@Override
+	public long getLatestEpoch() { return newestEpoch.get(); }
+	@Override
+	public boolean hasPendingWork() { return false; }
+	
+	// Approximate heap size of the buffer itself, excluding the stored values
+	public long getRetainedBytes()
+	{
+		return MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 2l*MemoryFootprint.REFERENCE_BYTES + 4l) + MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 8l) +
+				MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + MemoryFootprint.REFERENCE_BYTES) + MemoryFootprint.align(MemoryFootprint.ARRAY_HEADER_BYTES + MemoryFootprint.REFERENCE_BYTES*capacity) +
+				(size() * MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 8l + MemoryFootprint.REFERENCE_BYTES));
+	}
+	
+	public void put(long epoch, final T value)
+	{
+		// Never overwrite a slot which already holds a newer epoch
+		int index = slotIndex(epoch);
+		Slot<T> newSlot = new Slot<T>(epoch, value), currentSlot;
+		do
+		{
+			currentSlot = slots.get(index);
+			if ((currentSlot != null) && (currentSlot.epoch > epoch))
+				return;
+		} while (!slots.compareAndSet(index, currentSlot, newSlot));
+		
+		// Update the newest epoch seen
+		long newest;
+		do { newest = newestEpoch.get(); } while ((epoch > newest) && !newestEpoch.compareAndSet(newest, epoch));
+	}
+	
+	public T get(long epoch)
+	{
+		Slot<T> slot = slots.get(slotIndex(epoch));
+		return ((slot != null) && (slot.epoch == epoch)) ? slot.value : null;
+	}
+	
+	public T getNewest() { return get(newestEpoch.get()); }
+	
+	public int size()
+	{
+		int numRetained = 0;
+		long oldestEpoch = getOldestRetainedEpoch();
+		for (int i = 0; i < capacity; ++i)
+		{
+			Slot<T> slot = slots.get(i);
+			if ((slot != null) && (slot.epoch >= oldestEpoch))
+				++numRetained;
+		}
+		return numRetained;
+	}
+	
+	public void clear()
+	{
+		for (int i = 0; i < capacity; ++i)
+			slots.set(i, null);
+		newestEpoch.set(0l);
+	}
+	
+	private int slotIndex(long epoch) { return (int)(((epoch % capacity) + capacity) % capacity); }
+}
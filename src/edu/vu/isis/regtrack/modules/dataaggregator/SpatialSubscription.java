@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.dataaggregator;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.vu.isis.regtrack.common.GpsConstants;
+import edu.vu.isis.regtrack.common.ProcessedData;
+
+// Limits the set of remote receivers paired with the local receiver to those within a configurable radius
+//   and/or to the K nearest, based on the absolute locations broadcast by each receiver
+public final class SpatialSubscription
+{
+	private static final class RemoteLocation
+	{
+		public final double X, Y, Z;
+		public final long epoch;
+		public double distance;
+		
+		public RemoteLocation(final ProcessedData remoteData)
+		{
+			X = remoteData.absoluteLocation.X;
+			Y = remoteData.absoluteLocation.Y;
+			Z = remoteData.absoluteLocation.Z;
+			epoch = remoteData.receiveEpoch;
+		}
+	};
+	
+	// Member variables
+	private final ConcurrentHashMap<String, RemoteLocation> remoteLocations = new ConcurrentHashMap<String, RemoteLocation>();
+	private volatile Set<String> nearestNeighbors = Collections.emptySet();
+	private volatile double localX = 0.0, localY = 0.0, localZ = 0.0;
+	private volatile double maxRadius = 0.0;
+	private volatile int maxNeighbors = 0;
+	
+	// A radius or neighbor count of 0 disables that restriction
+	public void setRadius(double radius) { maxRadius = Math.max(radius, 0.0); }
+	public void setMaxNeighbors(int numNeighbors) { maxNeighbors = Math.max(numNeighbors, 0); }
+	public boolean isEnabled() { return (maxRadius > 0.0) || (maxNeighbors > 0); }
+	
+	public void removeRemote(final String remoteID) { remoteLocations.remove(remoteID); }
+	
+	public void evictIdleRemotes(long oldestEpoch)
+	{
+		Iterator<RemoteLocation> locations = remoteLocations.values().iterator();
+		while (locations.hasNext())
+			if (locations.next().epoch < oldestEpoch)
+				locations.remove();
+	}
+	public int getNumKnownRemotes() { return remoteLocations.size(); }
+	
+	void updateLocalLocation(final ProcessedData localData)
+	{
+		localX = localData.absoluteLocation.X;
+		localY = localData.absoluteLocation.Y;
+		localZ = localData.absoluteLocation.Z;
+		if (maxNeighbors <= 0)
+			return;
+		
+		// Re-rank all recently heard remotes and keep the nearest set for this epoch
+		PriorityQueue<Entry<String, RemoteLocation>> farthestFirst = new PriorityQueue<Entry<String, RemoteLocation>>(maxNeighbors + 1, new Comparator<Entry<String, RemoteLocation>>()
+		{
+			@Override
+			public int compare(Entry<String, RemoteLocation> lhs, Entry<String, RemoteLocation> rhs) { return Double.compare(rhs.getValue().distance, lhs.getValue().distance); }
+		});
+		for (final Entry<String, RemoteLocation> remote : remoteLocations.entrySet())
+		{
+			RemoteLocation location = remote.getValue();
+			if ((localData.receiveEpoch - location.epoch) > GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE)
+				continue;
+			location.distance = distanceTo(location);
+			if ((maxRadius > 0.0) && (location.distance > maxRadius))
+				continue;
+			
+			farthestFirst.offer(remote);
+			if (farthestFirst.size() > maxNeighbors)
+				farthestFirst.poll();
+		}
+		
+		HashSet<String> newNeighbors = new HashSet<String>();
+		for (final Entry<String, RemoteLocation> remote : farthestFirst)
+			newNeighbors.add(remote.getKey());
+		nearestNeighbors = newNeighbors;
+	}
+	
+	boolean acceptRemote(final ProcessedData remoteData)
+	{
+		RemoteLocation location = new RemoteLocation(remoteData);
+		remoteLocations.put(remoteData.ID, location);
+		if (!isEnabled())
+			return true;
+		
+		// Reject any remotes outside of the subscription radius
+		if ((maxRadius > 0.0) && (distanceTo(location) > maxRadius))
+			return false;
+		
+		// Only accept remotes which were among the nearest at the last local epoch, unless there is still room
+		Set<String> currentNeighbors = nearestNeighbors;
+		return (maxNeighbors <= 0) || currentNeighbors.contains(remoteData.ID) || (currentNeighbors.size() < maxNeighbors);
+	}
+	
+	private double distanceTo(final RemoteLocation location)
+	{
+		double xDiff = location.X - localX, yDiff = location.Y - localY, zDiff = location.Z - localZ;
+		return Math.sqrt(xDiff*xDiff + yDiff*yDiff + zDiff*zDiff);
+	}
+}
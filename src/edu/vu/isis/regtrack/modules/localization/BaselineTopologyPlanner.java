@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.localization;
+
+import edu.vu.isis.regtrack.common.Coordinate;
+import edu.vu.isis.regtrack.common.SatelliteMask;
+
+// Chooses a spanning tree of directly solved baselines rooted at the local receiver, where each remote's relative position
+//   is composed along its path to the root: the tree minimizes the expected composed error of every path, with each edge
+//   costing a fixed error plus an error proportional to its length, and edges lacking enough common satellites excluded
+final class BaselineTopologyPlanner
+{
+	public static final int ROOT = -1;
+	
+	// Planning parameters (errors in meters)
+	public static final int MIN_COMMON_SATELLITES = 5;
+	public static final double EDGE_ERROR = 0.02;
+	public static final double EDGE_ERROR_PER_METER = 1.0e-6;
+	private static final double CURRENT_EDGE_PREFERENCE = 0.8;
+	
+	// Member variables
+	private int[] parents = new int[0], order = new int[0];
+	private double[] pathErrors = new double[0];
+	private boolean[] isPlanned = new boolean[0];
+	private int numNodes = 0;
+	
+	public int getNumNodes() { return numNodes; }
+	public int getParent(int node) { return parents[node]; }
+	
+	// Nodes in an order where every parent precedes its children
+	public int getOrderedNode(int index) { return order[index]; }
+	
+	public static double expectedEdgeError(final Coordinate fromPosition, final Coordinate toPosition)
+	{
+		double xDiff = toPosition.X - fromPosition.X, yDiff = toPosition.Y - fromPosition.Y, zDiff = toPosition.Z - fromPosition.Z;
+		return EDGE_ERROR + (EDGE_ERROR_PER_METER * Math.sqrt(xDiff*xDiff + yDiff*yDiff + zDiff*zDiff));
+	}
+	
+	// Plans a tree over the given remote nodes (indexed from 0) given the current parent of each node (or a negative value if
+	//   unknown), which is favored in order to avoid needlessly restarting edges; nodes which cannot be reached through any
+	//   chain of edges with enough common satellites are attached directly to the root
+	public void plan(final Coordinate rootPosition, final SatelliteMask rootSatellites, final Coordinate[] positions, final SatelliteMask[] satellites,
+			final int[] currentParents, int nodes)
+	{
+		ensureCapacity(nodes);
+		numNodes = nodes;
+		for (int i = 0; i < numNodes; ++i)
+		{
+			isPlanned[i] = false;
+			parents[i] = ROOT;
+			pathErrors[i] = (satellites[i].commonSize(rootSatellites) >= MIN_COMMON_SATELLITES) ?
+					edgeCost(expectedEdgeError(rootPosition, positions[i]), currentParents[i] == ROOT) : Double.MAX_VALUE;
+		}
+		
+		// Dense shortest path search from the root (quadratic in the number of nodes, but requiring no graph structure)
+		int numPlanned = 0;
+		while (numPlanned < numNodes)
+		{
+			int nextNode = -1;
+			for (int i = 0; i < numNodes; ++i)
+				if (!isPlanned[i] && (pathErrors[i] < Double.MAX_VALUE) && ((nextNode < 0) || (pathErrors[i] < pathErrors[nextNode])))
+					nextNode = i;
+			if (nextNode < 0)
+				break;
+			
+			isPlanned[nextNode] = true;
+			order[numPlanned++] = nextNode;
+			for (int i = 0; i < numNodes; ++i)
+			{
+				if (isPlanned[i] || (satellites[i].commonSize(satellites[nextNode]) < MIN_COMMON_SATELLITES))
+					continue;
+				double pathError = pathErrors[nextNode] + edgeCost(expectedEdgeError(positions[nextNode], positions[i]), currentParents[i] == nextNode);
+				if (pathError < pathErrors[i])
+				{
+					pathErrors[i] = pathError;
+					parents[i] = nextNode;
+				}
+			}
+		}
+		
+		// Attach any unreachable nodes directly to the root
+		for (int i = 0; (i < numNodes) && (numPlanned < numNodes); ++i)
+			if (!isPlanned[i])
+			{
+				isPlanned[i] = true;
+				parents[i] = ROOT;
+				pathErrors[i] = expectedEdgeError(rootPosition, positions[i]);
+				order[numPlanned++] = i;
+			}
+	}
+	
+	private static double edgeCost(double expectedError, boolean isCurrentEdge) { return isCurrentEdge ? (CURRENT_EDGE_PREFERENCE * expectedError) : expectedError; }
+	
+	private void ensureCapacity(int nodes)
+	{
+		if (parents.length >= nodes)
+			return;
+		parents = new int[nodes];
+		order = new int[nodes];
+		pathErrors = new double[nodes];
+		isPlanned = new boolean[nodes];
+	}
+}
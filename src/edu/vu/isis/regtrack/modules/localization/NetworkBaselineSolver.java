@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.localization;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.vu.isis.regtrack.common.Coordinate;
+import edu.vu.isis.regtrack.common.GpsConstants;
+import edu.vu.isis.regtrack.common.PairwiseData;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy;
+import edu.vu.isis.regtrack.common.Result;
+import edu.vu.isis.regtrack.common.SatelliteMask;
+import edu.vu.isis.regtrack.modules.localization.RelativeTrackingFilter.TrackingMode;
+import edu.vu.isis.regtrack.modules.localization.RelativeTrackingFilter.TrackingState;
+
+// Estimates the baselines from the local receiver to every remote receiver paired at a single epoch as a batch of
+//   per-pair solutions (the error shared through the local receiver is not modelled jointly), where the only coupling
+//   is the satellite selection, which is screened once across the whole network so that every baseline is computed from
+//   a consistent set of satellites and a satellite fault seen by most pairs is excluded from all of them
+final class NetworkBaselineSolver
+{
+	// Smallest screening deviation (in meters) considered to be a fault, and the multiple of each pair's median deviation above this
+	private static final double MIN_FAULT_DEVIATION = GpsConstants.LAMBDA_L1 * 0.5;
+	private static final double FAULT_DEVIATION_SCALE = 4.0;
+	
+	// Member variables
+	private final ConcurrentHashMap<String, RelativeTrackingFilter> trackingFilters = new ConcurrentHashMap<String, RelativeTrackingFilter>();
+	private final int[] numPairsScreened = new int[GpsConstants.MAX_PRN+1], numPairsFaulty = new int[GpsConstants.MAX_PRN+1];
+	private final int[] screenedSatellites = new int[GpsConstants.MAX_PRN+1];
+	private final double[] predictedResidual = new double[GpsConstants.MAX_PRN+1], scratch = new double[GpsConstants.MAX_PRN+1];
+	private final SatelliteMask networkExcludedSatellites = new SatelliteMask(), ignoredSatellites = new SatelliteMask();
+	private final Coordinate relativeBaseline = new Coordinate(), trackingResult = new Coordinate();
+	
+	public int getNumRemotes() { return trackingFilters.size(); }
+	public SatelliteMask getNetworkExcludedSatellites() { return networkExcludedSatellites; }
+	public TrackingState getTrackingState(final String remoteID) { return getTrackingFilter(remoteID).getTrackingState(); }
+	public void restoreTrackingState(final String remoteID, final TrackingState state) { getTrackingFilter(remoteID).restoreTrackingState(state); }
+	public void resumeTrackingState(final String remoteID, final TrackingState state) { RelativeLocalizer.resumeTracking(getTrackingFilter(remoteID), state); }
+	
+	// May be called from any thread
+	public long getRetainedBytes(final String remoteID)
+	{
+		RelativeTrackingFilter trackingFilter = trackingFilters.get(remoteID);
+		return (trackingFilter == null) ? 0l : trackingFilter.getRetainedBytes();
+	}
+	
+	// Removes remotes according to the given retention policy
+	public void evictRemotes(final RemoteRetentionPolicy retentionPolicy, long currentEpoch) { retentionPolicy.trimRemotes(trackingFilters, currentEpoch); }
+	
+	// Solves all pairs (which must share the same local epoch) and appends one result per pair, returning the number of
+	//   satellites excluded from every pair
+	public int solve(final ArrayList<PairwiseData> epochObservations, final TrackingMode trackingMode, final ArrayList<Result> results)
+	{
+		// Screen each pair at its predicted baseline, counting how often each satellite deviates from the common clock term
+		for (int PRN = 0; PRN <= GpsConstants.MAX_PRN; ++PRN)
+		{
+			numPairsScreened[PRN] = 0;
+			numPairsFaulty[PRN] = 0;
+		}
+		for (final PairwiseData observation : epochObservations)
+		{
+			RelativeTrackingFilter trackingFilter = getTrackingFilter(observation.remote.ID);
+			trackingFilter.setTrackingMode(trackingMode);
+			int numScreened = trackingFilter.screenSatellites(observation, screenedSatellites, predictedResidual, scratch);
+			if (numScreened < 5)
+				continue;
+			
+			// Use the median absolute deviation of this pair to scale its fault threshold
+			for (int i = 0; i < numScreened; ++i)
+			{
+				double deviation = Math.abs(predictedResidual[screenedSatellites[i]]);
+				int j = i;
+				for (; (j > 0) && (scratch[j-1] > deviation); --j)
+					scratch[j] = scratch[j-1];
+				scratch[j] = deviation;
+			}
+			double faultThreshold = Math.max(MIN_FAULT_DEVIATION, FAULT_DEVIATION_SCALE * scratch[numScreened/2]);
+			for (int i = 0; i < numScreened; ++i)
+			{
+				int PRN = screenedSatellites[i];
+				++numPairsScreened[PRN];
+				if (Math.abs(predictedResidual[PRN]) > faultThreshold)
+					++numPairsFaulty[PRN];
+			}
+		}
+		
+		// Exclude satellites which appear faulty in a majority of (and at least two) pairs, since the fault must then lie
+		//   with the local receiver or the satellite itself rather than with any single remote
+		networkExcludedSatellites.clear();
+		for (int PRN = 0; PRN <= GpsConstants.MAX_PRN; ++PRN)
+			if ((numPairsFaulty[PRN] >= 2) && ((2 * numPairsFaulty[PRN]) > numPairsScreened[PRN]))
+				networkExcludedSatellites.add(PRN);
+		
+		// Solve each block of the joint problem using the consistent satellite selection
+		for (final PairwiseData observation : epochObservations)
+		{
+			RelativeTrackingFilter trackingFilter = getTrackingFilter(observation.remote.ID);
+			int confidence = trackingFilter.trackReceiver(observation, relativeBaseline, trackingResult, ignoredSatellites, networkExcludedSatellites);
+			trackingFilter.updateEstimatedBaseline(relativeBaseline);
+			results.add(new Result(observation.remote.ID, relativeBaseline, observation.receiveEpoch, (double)confidence));
+		}
+		
+		return networkExcludedSatellites.size();
+	}
+	
+	private RelativeTrackingFilter getTrackingFilter(final String remoteID)
+	{
+		RelativeTrackingFilter trackingFilter = trackingFilters.get(remoteID);
+		if (trackingFilter == null)
+		{
+			trackingFilter = new RelativeTrackingFilter();
+			trackingFilters.put(remoteID, trackingFilter);
+		}
+		return trackingFilter;
+	}
+}
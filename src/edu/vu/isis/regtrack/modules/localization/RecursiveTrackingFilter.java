@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.localization;
+
+import edu.vu.isis.regtrack.common.Coordinate;
+import edu.vu.isis.regtrack.common.Matrix;
+
+// Information-form Kalman filter carrying the relative baseline, relative velocity, and clock drift single difference
+//   between epochs, so that each epoch requires only a single prediction and a single measurement update
+//     State: [baselineX, baselineY, baselineZ, velocityX, velocityY, velocityZ, clockDriftSD]
+final class RecursiveTrackingFilter
+{
+	public static final int NUM_STATES = 7;
+	
+	// Filter tuning parameters (variances in meters^2, per one-second epoch)
+	private static final double MEASUREMENT_VARIANCE = 0.02 * 0.02;
+	private static final double ACCELERATION_VARIANCE = 0.5 * 0.5;
+	private static final double CLOCK_DRIFT_SD_PROCESS_VARIANCE = 1.0 * 1.0;
+	private static final double CALCULATED_CLOCK_DRIFT_SD_VARIANCE = 2.0 * 2.0;
+	private static final double INITIAL_BASELINE_VARIANCE = 10.0 * 10.0;
+	private static final double INITIAL_VELOCITY_VARIANCE = 2.0 * 2.0;
+	private static final double INITIAL_CLOCK_DRIFT_SD_VARIANCE = 100.0 * 100.0;
+	private static final double INNOVATION_GATE = 4.0 * 4.0;
+	
+	// Member variables
+	private final double[] state = new double[NUM_STATES];
+	private final Matrix covariance = new Matrix(NUM_STATES, NUM_STATES);
+	private final Matrix information = new Matrix(NUM_STATES, NUM_STATES);
+	private final Matrix informationVector = new Matrix(NUM_STATES, 1);
+	private final Matrix choleskyFactor = new Matrix(NUM_STATES, NUM_STATES);
+	private int numMeasurements = 0;
+	
+	public double getState(int index) { return state[index]; }
+	public int getNumMeasurements() { return numMeasurements; }
+	
+	public void initialize(final Coordinate baseline, final Coordinate velocity)
+	{
+		state[0] = baseline.X;
+		state[1] = baseline.Y;
+		state[2] = baseline.Z;
+		state[3] = velocity.X;
+		state[4] = velocity.Y;
+		state[5] = velocity.Z;
+		state[6] = 0.0;
+		covariance.setZeroMatrix();
+		for (int i = 0; i < 3; ++i)
+		{
+			covariance.setValueAt(i, i, INITIAL_BASELINE_VARIANCE);
+			covariance.setValueAt(i+3, i+3, INITIAL_VELOCITY_VARIANCE);
+		}
+		covariance.setValueAt(6, 6, INITIAL_CLOCK_DRIFT_SD_VARIANCE);
+	}
+	
+	public void setBaseline(final Coordinate baseline)
+	{
+		state[0] = baseline.X;
+		state[1] = baseline.Y;
+		state[2] = baseline.Z;
+	}
+	
+	// Propagates the state forward by one epoch using a constant velocity model with white acceleration noise
+	public void predict()
+	{
+		// State transition (baseline += velocity)
+		for (int i = 0; i < 3; ++i)
+			state[i] += state[i+3];
+		
+		// Covariance transition (F*P*F^T, where F adds each velocity row/column into the corresponding baseline row/column)
+		for (int i = 0; i < 3; ++i)
+			for (int j = 0; j < NUM_STATES; ++j)
+				covariance.setValueAt(i, j, covariance.valueAt(i, j) + covariance.valueAt(i+3, j));
+		for (int j = 0; j < 3; ++j)
+			for (int i = 0; i < NUM_STATES; ++i)
+				covariance.setValueAt(i, j, covariance.valueAt(i, j) + covariance.valueAt(i, j+3));
+		
+		// Add process noise
+		for (int i = 0; i < 3; ++i)
+		{
+			covariance.setValueAt(i, i, covariance.valueAt(i, i) + (0.25 * ACCELERATION_VARIANCE));
+			covariance.setValueAt(i, i+3, covariance.valueAt(i, i+3) + (0.5 * ACCELERATION_VARIANCE));
+			covariance.setValueAt(i+3, i, covariance.valueAt(i+3, i) + (0.5 * ACCELERATION_VARIANCE));
+			covariance.setValueAt(i+3, i+3, covariance.valueAt(i+3, i+3) + ACCELERATION_VARIANCE);
+		}
+		covariance.setValueAt(6, 6, covariance.valueAt(6, 6) + CLOCK_DRIFT_SD_PROCESS_VARIANCE);
+	}
+	
+	// Starts a measurement update by converting the predicted covariance into information form,
+	//   using the calculated clock drift single difference as a pseudo-measurement
+	public boolean beginUpdate(double calculatedClockDriftSD)
+	{
+		numMeasurements = 0;
+		covariance.getLowerCholeskyDecomp(choleskyFactor);
+		for (int i = 0; i < NUM_STATES; ++i)
+			if (!(choleskyFactor.valueAt(i, i) > 0.0))
+				return false;
+		information.setIdentityMatrix();
+		choleskyFactor.choleskySolveInPlace(information);
+		informationVector.setZeroMatrix();
+		
+		information.setValueAt(6, 6, information.valueAt(6, 6) + (1.0 / CALCULATED_CLOCK_DRIFT_SD_VARIANCE));
+		informationVector.setValueAt(6, 0, (calculatedClockDriftSD - state[6]) / CALCULATED_CLOCK_DRIFT_SD_VARIANCE);
+		return true;
+	}
+	
+	// Returns false (and ignores the measurement) if the normalized innovation falls outside of the gate, where the
+	//   measurement row is [unitX, unitY, unitZ, 0, 0, 0, -1] and the residual is (estimated - measured)
+	public boolean addMeasurement(double unitX, double unitY, double unitZ, double residual, double weight)
+	{
+		// Innovation variance: H*P*H^T + R
+		double measurementVariance = MEASUREMENT_VARIANCE / weight, innovationVariance = measurementVariance;
+		for (int i = 0; i < NUM_STATES; ++i)
+		{
+			double hi = measurementCoefficient(i, unitX, unitY, unitZ);
+			if (hi == 0.0)
+				continue;
+			for (int j = 0; j < NUM_STATES; ++j)
+				innovationVariance += hi * covariance.valueAt(i, j) * measurementCoefficient(j, unitX, unitY, unitZ);
+		}
+		if ((residual * residual) > (INNOVATION_GATE * innovationVariance))
+			return false;
+		
+		// Accumulate the information contribution of this measurement
+		for (int i = 0; i < NUM_STATES; ++i)
+		{
+			double hi = measurementCoefficient(i, unitX, unitY, unitZ);
+			if (hi == 0.0)
+				continue;
+			informationVector.setValueAt(i, 0, informationVector.valueAt(i, 0) + (hi * residual / measurementVariance));
+			for (int j = 0; j < NUM_STATES; ++j)
+				information.setValueAt(i, j, information.valueAt(i, j) + (hi * measurementCoefficient(j, unitX, unitY, unitZ) / measurementVariance));
+		}
+		++numMeasurements;
+		return true;
+	}
+	
+	// Solves for the state correction, returning false if the information matrix is singular or the correction would
+	//   move the baseline further than the given distance (in which case the predicted state is retained)
+	public boolean completeUpdate(double maxBaselineCorrection)
+	{
+		information.getLowerCholeskyDecomp(choleskyFactor);
+		for (int i = 0; i < NUM_STATES; ++i)
+			if (!(choleskyFactor.valueAt(i, i) > 0.0))
+				return false;
+		choleskyFactor.choleskySolveInPlace(informationVector);
+		double correctionLength = Math.sqrt(informationVector.valueAt(0)*informationVector.valueAt(0) + informationVector.valueAt(1)*informationVector.valueAt(1) +
+				informationVector.valueAt(2)*informationVector.valueAt(2));
+		if (Double.isNaN(correctionLength) || (correctionLength > maxBaselineCorrection))
+			return false;
+		
+		// Apply the correction and recover the updated covariance
+		for (int i = 0; i < NUM_STATES; ++i)
+			state[i] += informationVector.valueAt(i);
+		covariance.setIdentityMatrix();
+		choleskyFactor.choleskySolveInPlace(covariance);
+		return true;
+	}
+	
+	private static double measurementCoefficient(int index, double unitX, double unitY, double unitZ)
+	{
+		switch (index)
+		{
+			case 0:
+				return unitX;
+			case 1:
+				return unitY;
+			case 2:
+				return unitZ;
+			case 6:
+				return -1.0;
+			default:
+				return 0.0;
+		}
+	}
+}
@@ -18,32 +18,348 @@
 
 package edu.vu.isis.regtrack.modules.localization;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.vu.isis.regtrack.common.Coordinate;
+import edu.vu.isis.regtrack.common.DataCodec;
+import edu.vu.isis.regtrack.common.MemoryFootprint;
 import edu.vu.isis.regtrack.common.PairwiseData;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy.RetainedRemote;
 import edu.vu.isis.regtrack.common.Result;
+import edu.vu.isis.regtrack.common.SatelliteMask;
+import edu.vu.isis.regtrack.modules.localization.RelativeTrackingFilter.TrackingMode;
+import edu.vu.isis.regtrack.modules.localization.RelativeTrackingFilter.TrackingState;
 import edu.vu.isis.messaging.RLMessage;
 import edu.vu.isis.messaging.RLMessageType;
 import edu.vu.isis.messaging.RLModule;
 
 public final class RelativeLocalizer extends RLModule
 {
+	// Serial executor owning all tracking state for a single remote receiver: observations are queued in arrival
+	//   order and processed by at most one worker thread at a time, so no thread ever blocks waiting for a remote
+	private final class RemoteTracker implements Runnable, RetainedRemote
+	{
+		private final RelativeTrackingFilter relativeTrackingFilter = new RelativeTrackingFilter();
+		private final ConcurrentLinkedQueue<PairwiseData> pendingObservations = new ConcurrentLinkedQueue<PairwiseData>();
+		private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+		private final Coordinate trackingResult = new Coordinate(), relativeBaseline = new Coordinate();
+		private final SatelliteMask ignoredSatellites = new SatelliteMask();
+		private volatile long latestEpoch = 0l;
+		
+		public void submit(final PairwiseData observation)
+		{
+			latestEpoch = Math.max(latestEpoch, observation.receiveEpoch);
+			pendingObservations.offer(observation);
+			if (isScheduled.compareAndSet(false, true))
+				workerPool.execute(this);
+		}
+		
+		// Trackers with queued or running work are never evicted, so no observations are discarded
+		@Override
+		public long getLatestEpoch() { return latestEpoch; }
+		@Override
+		public boolean hasPendingWork() { return !pendingObservations.isEmpty() || isScheduled.get(); }
+		
+		public long getRetainedBytes()
+		{
+			long retainedBytes = MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 7l*MemoryFootprint.REFERENCE_BYTES + 8l) + relativeTrackingFilter.getRetainedBytes() +
+					2l*MemoryFootprint.COORDINATE_BYTES + MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 16l);
+			for (final PairwiseData observation : pendingObservations)
+				retainedBytes += QUEUE_NODE_BYTES + observation.getRetainedBytes();
+			return retainedBytes;
+		}
+		
+		@Override
+		public void run()
+		{
+			// Process a bounded number of observations so that busy remotes cannot starve others sharing the worker pool
+			PairwiseData observation;
+			for (int i = 0; (i < MAX_OBSERVATIONS_PER_RUN) && ((observation = pendingObservations.poll()) != null); ++i)
+			{
+				try { track(observation); }
+				catch (RuntimeException e) { System.err.println("Error tracking remote receiver " + observation.remote.ID + ": " + e.getMessage()); }
+			}
+			
+			// Reschedule if more observations arrived while running
+			isScheduled.set(false);
+			if (!pendingObservations.isEmpty() && isScheduled.compareAndSet(false, true))
+				workerPool.execute(this);
+		}
+		
+		private void track(final PairwiseData observation)
+		{
+			// Track relative position, continuing from any state left by network solving
+			resumeTracking(relativeTrackingFilter, trackingStates.get(observation.remote.ID));
+			relativeTrackingFilter.setTrackingMode(trackingMode);
+			int confidence = relativeTrackingFilter.trackReceiver(observation, relativeBaseline, trackingResult, ignoredSatellites);
+			
+			// Update baseline solution
+			relativeTrackingFilter.updateEstimatedBaseline(relativeBaseline);
+			if (remoteTrackers.get(observation.remote.ID) == this)
+				trackingStates.put(observation.remote.ID, relativeTrackingFilter.getTrackingState());
+			
+			// Send result to next module
+			sendMessageToNextModule(new RLMessage(new Result(observation.remote.ID, relativeBaseline, observation.receiveEpoch, (double)confidence)));
+		}
+	};
+	
+	// Serial executor which groups pairs by local epoch and solves each epoch jointly across all remote receivers, where an
+	//   epoch is solved once pairs for a later epoch begin arriving or once its deadline passes (or, when solving the network
+	//   directly, once pairs for as many remotes as in the previous epoch have arrived)
+	private final class NetworkTracker implements Runnable
+	{
+		private final NetworkBaselineSolver networkSolver = new NetworkBaselineSolver();
+		private final SpanningTreeBaselineSolver spanningTreeSolver = new SpanningTreeBaselineSolver();
+		private final ConcurrentLinkedQueue<PairwiseData> pendingObservations = new ConcurrentLinkedQueue<PairwiseData>();
+		private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+		private final ArrayList<PairwiseData> epochObservations = new ArrayList<PairwiseData>();
+		private final ArrayList<Result> results = new ArrayList<Result>();
+		private final AtomicLong expiredEpoch = new AtomicLong(0l);
+		private int previousEpochRemotes = 0;
+		
+		public void submit(final PairwiseData observation)
+		{
+			pendingObservations.offer(observation);
+			schedule();
+		}
+		
+		private void schedule()
+		{
+			if (isScheduled.compareAndSet(false, true))
+				workerPool.execute(this);
+		}
+		
+		@Override
+		public void run()
+		{
+			PairwiseData observation;
+			for (int i = 0; (i < MAX_OBSERVATIONS_PER_RUN) && ((observation = pendingObservations.poll()) != null); ++i)
+			{
+				if (!epochObservations.isEmpty() && (observation.receiveEpoch != epochObservations.get(0).receiveEpoch))
+					solveEpoch();
+				if (epochObservations.isEmpty())
+					scheduleDeadline(observation.receiveEpoch);
+				epochObservations.add(observation);
+				
+				// The spanning tree is planned across every pair at the epoch, so it is never solved early
+				if (!isSpanningTreeSolvingEnabled && (previousEpochRemotes > 0) && (epochObservations.size() >= previousEpochRemotes))
+					solveEpoch();
+			}
+			if (!epochObservations.isEmpty() && (epochObservations.get(0).receiveEpoch <= expiredEpoch.get()))
+				solveEpoch();
+			
+			// Reschedule if more observations arrived while running
+			isScheduled.set(false);
+			if (!pendingObservations.isEmpty() && isScheduled.compareAndSet(false, true))
+				workerPool.execute(this);
+		}
+		
+		private void scheduleDeadline(final long epoch)
+		{
+			deadlineScheduler.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					long expired;
+					do { expired = expiredEpoch.get(); } while ((epoch > expired) && !expiredEpoch.compareAndSet(expired, epoch));
+					schedule();
+				}
+			}, EPOCH_SOLVE_DEADLINE_MS, TimeUnit.MILLISECONDS);
+		}
+		
+		private void solveEpoch()
+		{
+			previousEpochRemotes = epochObservations.size();
+			try
+			{
+				if (isSpanningTreeSolvingEnabled)
+				{
+					spanningTreeSolver.solve(epochObservations, trackingMode, results);
+					spanningTreeSolver.evictRemotes(retentionPolicy, epochObservations.get(0).receiveEpoch);
+				}
+				else
+				{
+					for (final PairwiseData observation : epochObservations)
+						networkSolver.resumeTrackingState(observation.remote.ID, trackingStates.get(observation.remote.ID));
+					networkSolver.solve(epochObservations, trackingMode, results);
+					networkSolver.evictRemotes(retentionPolicy, epochObservations.get(0).receiveEpoch);
+				}
+			}
+			catch (RuntimeException e) { System.err.println("Error tracking remote receivers at epoch " + epochObservations.get(0).receiveEpoch + ": " + e.getMessage()); }
+			
+			// Send results to next module
+			for (final Result result : results)
+			{
+				if (!isSpanningTreeSolvingEnabled)
+					trackingStates.put(result.ID, networkSolver.getTrackingState(result.ID));
+				sendMessageToNextModule(new RLMessage(result));
+			}
+			epochObservations.clear();
+			results.clear();
+		}
+	};
+	
+	private static final int MAX_OBSERVATIONS_PER_RUN = 16;
+	private static final long EPOCH_SOLVE_DEADLINE_MS = 500l;
+	private static final long QUEUE_NODE_BYTES = MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 2l*MemoryFootprint.REFERENCE_BYTES);
+	private static final long TRACKING_STATE_BYTES = MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 3l*MemoryFootprint.REFERENCE_BYTES + 8l) +
+			3l*MemoryFootprint.COORDINATE_BYTES + MemoryFootprint.HASH_MAP_ENTRY_BYTES;
+	
+	// Worker pool shared by every RelativeLocalizer in the process which is not given its own, so that the number of
+	//   tracking threads does not grow with the number of receivers
+	private static final ExecutorService sharedWorkerPool = createWorkerPool(Runtime.getRuntime().availableProcessors());
+	private static final ScheduledExecutorService deadlineScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread deadlineThread = new Thread(runnable, "RelativeLocalizerDeadline");
+			deadlineThread.setDaemon(true);
+			return deadlineThread;
+		}
+	});
+	
 	// Member variables
-	private final ConcurrentHashMap<String, Lock> localizationLocks = new ConcurrentHashMap<String, Lock>();
-	private final ConcurrentHashMap<String, RelativeTrackingFilter> relativeTrackingFilters = new ConcurrentHashMap<String, RelativeTrackingFilter>();
+	private final ConcurrentHashMap<String, RemoteTracker> remoteTrackers = new ConcurrentHashMap<String, RemoteTracker>();
+	private final ConcurrentHashMap<String, TrackingState> trackingStates = new ConcurrentHashMap<String, TrackingState>();
+	private final NetworkTracker networkTracker = new NetworkTracker();
+	private final ExecutorService workerPool;
+	private final boolean ownsWorkerPool;
+	private volatile TrackingMode trackingMode = TrackingMode.BATCH_LEAST_SQUARES;
+	private volatile boolean isNetworkSolvingEnabled = false, isSpanningTreeSolvingEnabled = false;
+	private final RemoteRetentionPolicy retentionPolicy = new RemoteRetentionPolicy();
+	private final AtomicLong lastEvictionEpoch = new AtomicLong(0l);
 	
-	// Constructor
-	public RelativeLocalizer(String moduleID)
+	// Constructors (a localizer only shuts down a worker pool that it created itself)
+	public RelativeLocalizer(String moduleID) { this(moduleID, sharedWorkerPool, false); }
+	public RelativeLocalizer(String moduleID, int numWorkerThreads) { this(moduleID, createWorkerPool(numWorkerThreads), true); }
+	public RelativeLocalizer(String moduleID, final ExecutorService workers) { this(moduleID, workers, false); }
+	private RelativeLocalizer(String moduleID, final ExecutorService workers, boolean ownsWorkers)
 	{
 		super(moduleID);
 		
+		workerPool = workers;
+		ownsWorkerPool = ownsWorkers;
+		
 		addIncomingMessageType(RLMessageType.PAIRWISE_DATA);
 	}
 	
+	public static ExecutorService getSharedWorkerPool() { return sharedWorkerPool; }
+	
+	public void shutdown()
+	{
+		if (ownsWorkerPool)
+			workerPool.shutdownNow();
+	}
+	
+	// Applies to all remote receivers, starting with their next observation
+	public TrackingMode getTrackingMode() { return trackingMode; }
+	public void setTrackingMode(TrackingMode mode) { trackingMode = mode; }
+	
+	// When enabled, all remote receivers paired at the same epoch are solved jointly rather than independently
+	public boolean isNetworkSolvingEnabled() { return isNetworkSolvingEnabled; }
+	public void enableNetworkSolving(boolean isEnabled) { isNetworkSolvingEnabled = isEnabled; }
+	
+	// When enabled, only the baselines along a planned spanning tree are tracked and all others are composed from them
+	public boolean isSpanningTreeSolvingEnabled() { return isSpanningTreeSolvingEnabled; }
+	public void enableSpanningTreeSolving(boolean isEnabled) { isSpanningTreeSolvingEnabled = isEnabled; }
+	
+	// Tracking state is retained according to the shared RemoteRetentionPolicy (observations from a new remote are dropped
+	//   while the maximum number of remotes are all active)
+	public RemoteRetentionPolicy getRetentionPolicy() { return retentionPolicy; }
+	public int getMaxRemotes() { return retentionPolicy.getMaxRemotes(); }
+	public void setMaxRemotes(int numRemotes) { retentionPolicy.setMaxRemotes(numRemotes); }
+	public long getRemoteIdleTimeout() { return retentionPolicy.getRemoteIdleTimeout(); }
+	public void setRemoteIdleTimeout(long numEpochs) { retentionPolicy.setRemoteIdleTimeout(numEpochs); }
+	public int getNumRemotes() { return remoteTrackers.size(); }
+	
+	// Approximate heap size of all tracking state retained for the given remote receiver
+	public long getRetainedBytes(final String remoteID)
+	{
+		RemoteTracker remoteTracker = remoteTrackers.get(remoteID);
+		long retainedBytes = (remoteTracker == null) ? 0l : (remoteTracker.getRetainedBytes() + MemoryFootprint.HASH_MAP_ENTRY_BYTES);
+		return retainedBytes + networkTracker.networkSolver.getRetainedBytes(remoteID) + (trackingStates.containsKey(remoteID) ? TRACKING_STATE_BYTES : 0l);
+	}
+	
+	// Writes the most recent tracking state of every remote receiver (baselines composed through a spanning tree are not
+	//   written, since each is tracked relative to another remote)
+	public void writeCheckpoint(final DataOutputStream dataStreamOut) throws IOException
+	{
+		ArrayList<Entry<String, TrackingState>> states = new ArrayList<Entry<String, TrackingState>>(trackingStates.entrySet());
+		dataStreamOut.writeInt(states.size());
+		for (final Entry<String, TrackingState> state : states)
+		{
+			DataCodec.writeString(dataStreamOut, state.getKey());
+			dataStreamOut.writeLong(state.getValue().epoch);
+			DataCodec.writeCoordinate(dataStreamOut, state.getValue().baseline);
+			DataCodec.writeCoordinate(dataStreamOut, state.getValue().velocity);
+			DataCodec.writeCoordinate(dataStreamOut, state.getValue().acceleration);
+		}
+	}
+	
+	// Reads tracking states written by writeCheckpoint without applying them, returning the action which restores them
+	//   (which must be run before any pairwise data arrives, and restores trackers subject to the retention policy)
+	public Runnable readCheckpoint(final DataInputStream dataStreamIn) throws IOException
+	{
+		final ArrayList<Entry<String, TrackingState>> states = new ArrayList<Entry<String, TrackingState>>();
+		Coordinate baseline = new Coordinate(), velocity = new Coordinate(), acceleration = new Coordinate();
+		int numStates = dataStreamIn.readInt();
+		for (int i = 0; i < numStates; ++i)
+		{
+			String remoteID = DataCodec.readString(dataStreamIn);
+			long epoch = dataStreamIn.readLong();
+			DataCodec.readCoordinate(dataStreamIn, baseline);
+			DataCodec.readCoordinate(dataStreamIn, velocity);
+			DataCodec.readCoordinate(dataStreamIn, acceleration);
+			states.add(new SimpleImmutableEntry<String, TrackingState>(remoteID, new TrackingState(epoch, baseline, velocity, acceleration)));
+		}
+		
+		// The most recently tracked remotes are restored first in case they cannot all be retained
+		Collections.sort(states, new Comparator<Entry<String, TrackingState>>()
+		{
+			@Override
+			public int compare(Entry<String, TrackingState> lhs, Entry<String, TrackingState> rhs) { return Long.signum(rhs.getValue().epoch - lhs.getValue().epoch); }
+		});
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (final Entry<String, TrackingState> entry : states)
+				{
+					String remoteID = entry.getKey();
+					TrackingState state = entry.getValue();
+					RemoteTracker remoteTracker = new RemoteTracker();
+					remoteTracker.relativeTrackingFilter.restoreTrackingState(state);
+					remoteTracker.latestEpoch = state.epoch;
+					if (retentionPolicy.addRemote(remoteTrackers, remoteID, remoteTracker, state.epoch) != remoteTracker)
+						continue;
+					networkTracker.networkSolver.restoreTrackingState(remoteID, state);
+					trackingStates.put(remoteID, state);
+				}
+			}
+		};
+	}
+	
 	@Override
 	protected void incomingMessageHandler(final RLMessage message)
 	{
@@ -52,42 +368,65 @@ public final class RelativeLocalizer extends RLModule
 			case PAIRWISE_DATA:
 				{
 					// Get pairwise data observations
-					Coordinate trackingResult = new Coordinate(), relativeBaseline = new Coordinate();
-					ArrayList<Integer> ignoredSatellites = new ArrayList<Integer>();
 					PairwiseData observation = (PairwiseData)message.data;
 					if (observation.referenceSatellite == 0)
 						return;
 					
-					// Get filters associated with the remote receiver
-					Lock localizationLock = localizationLocks.get(observation.remote.ID);
-					RelativeTrackingFilter relativeTrackingFilter = relativeTrackingFilters.get(observation.remote.ID);
-					if (localizationLock == null)
-					{
-						localizationLock = new ReentrantLock(true);
-						relativeTrackingFilter = new RelativeTrackingFilter();
-						localizationLocks.put(observation.remote.ID, localizationLock);
-						relativeTrackingFilters.put(observation.remote.ID, relativeTrackingFilter);
-					}
+					// Forget idle remotes once per epoch
+					long lastEpoch = lastEvictionEpoch.get();
+					if ((observation.receiveEpoch > lastEpoch) && lastEvictionEpoch.compareAndSet(lastEpoch, observation.receiveEpoch))
+						evictIdleRemotes(observation.receiveEpoch);
 					
-					// Since localization can take longer than a single epoch, a fair lock must be used to ensure data
-					//   consistency and ordering through time
-					localizationLock.lock();
-					try
+					if (isNetworkSolvingEnabled || isSpanningTreeSolvingEnabled)
 					{
-						// Track relative position
-						int confidence = relativeTrackingFilter.trackReceiver(observation, relativeBaseline, trackingResult, ignoredSatellites);
-						
-						// Update baseline solution
-						relativeTrackingFilter.updateEstimatedBaseline(relativeBaseline);
-						
-						// Send result to next module
-						sendMessageToNextModule(new RLMessage(new Result(observation.remote.ID, relativeBaseline, observation.receiveEpoch, (double)confidence)));
+						networkTracker.submit(observation);
+						return;
 					}
-					finally { localizationLock.unlock(); }
+					
+					// Get tracker associated with the remote receiver
+					RemoteTracker remoteTracker = remoteTrackers.get(observation.remote.ID);
+					if ((remoteTracker == null) && ((remoteTracker = retentionPolicy.addRemote(remoteTrackers, observation.remote.ID, new RemoteTracker(), observation.receiveEpoch)) == null))
+						return;
+					
+					// Since localization can take longer than a single epoch, each remote is tracked by its own serial
+					//   executor to ensure data consistency and ordering through time
+					remoteTracker.submit(observation);
 				}
 				break;
 			default:
 				break;
 		}
 	}
+	
+	private static ExecutorService createWorkerPool(int numWorkerThreads)
+	{
+		return Executors.newFixedThreadPool(Math.max(1, numWorkerThreads), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread workerThread = new Thread(runnable, "RelativeLocalizer");
+				workerThread.setDaemon(true);
+				return workerThread;
+			}
+		});
+	}
+	
+	// Continues tracking from a state left by another solving mode if it is more recent than the filter's own (spanning tree
+	//   edges are not relative to the local receiver and so leave no state to continue from)
+	static void resumeTracking(final RelativeTrackingFilter trackingFilter, final TrackingState state)
+	{
+		if ((state != null) && (state.epoch > trackingFilter.getLastObservationEpoch()))
+			trackingFilter.restoreTrackingState(state);
+	}
+	
+	private void evictIdleRemotes(long currentEpoch)
+	{
+		long oldestEpoch = currentEpoch - retentionPolicy.getRemoteIdleTimeout();
+		retentionPolicy.evictIdleRemotes(remoteTrackers, currentEpoch);
+		Iterator<TrackingState> states = trackingStates.values().iterator();
+		while (states.hasNext())
+			if (states.next().epoch < oldestEpoch)
+				states.remove();
+	}
 }
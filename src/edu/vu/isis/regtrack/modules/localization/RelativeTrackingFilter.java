@@ -18,52 +18,152 @@
 
 package edu.vu.isis.regtrack.modules.localization;
 
-import java.util.ArrayList;
-
 import edu.vu.isis.regtrack.common.Coordinate;
 import edu.vu.isis.regtrack.common.GpsConstants;
-import edu.vu.isis.regtrack.common.Matrix;
+import edu.vu.isis.regtrack.common.LocalEpochContext;
+import edu.vu.isis.regtrack.common.MemoryFootprint;
 import edu.vu.isis.regtrack.common.PairwiseData;
-import edu.vu.isis.regtrack.common.PairwiseData.ManipulatedData;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy.RetainedRemote;
+import edu.vu.isis.regtrack.common.SatelliteGeometry;
+import edu.vu.isis.regtrack.common.SatelliteMask;
 import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
+import edu.vu.isis.regtrack.common.WeightedLeastSquares;
 
-public final class RelativeTrackingFilter
+public final class RelativeTrackingFilter implements RetainedRemote
 {
+	public static enum TrackingMode {BATCH_LEAST_SQUARES, RECURSIVE_KALMAN};
+	
+	// Immutable copy of everything needed to resume tracking at the epoch following the one it was taken at
+	public static final class TrackingState
+	{
+		public final long epoch;
+		public final Coordinate baseline, velocity, acceleration;
+		
+		public TrackingState(long stateEpoch, final Coordinate stateBaseline, final Coordinate stateVelocity, final Coordinate stateAcceleration)
+		{
+			epoch = stateEpoch;
+			baseline = new Coordinate(stateBaseline);
+			velocity = new Coordinate(stateVelocity);
+			acceleration = new Coordinate(stateAcceleration);
+		}
+	};
+	
+	// Largest change in baseline (in meters) that can be applied after excluding a satellite without re-linearizing
+	private static final double MAX_LINEAR_EXCLUSION_STEP = 1.0;
+	
+	// Approximate heap size of a filter (all per-satellite storage is fixed size), with and without a recursive filter
+	private static final long BATCH_FILTER_BYTES = MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 25l*MemoryFootprint.REFERENCE_BYTES + 9l*8l) +
+			4l*MemoryFootprint.COORDINATE_BYTES + MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 16l) + 2l*MemoryFootprint.intArrayBytes(GpsConstants.MAX_PRN+1) +
+			11l*MemoryFootprint.doubleArrayBytes(GpsConstants.MAX_PRN+1) + MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 5l*MemoryFootprint.REFERENCE_BYTES + 9l) +
+			2l*MemoryFootprint.doubleArrayBytes(WeightedLeastSquares.MAX_PARAMETERS*WeightedLeastSquares.MAX_PARAMETERS) + 3l*MemoryFootprint.doubleArrayBytes(WeightedLeastSquares.MAX_PARAMETERS);
+	private static final long RECURSIVE_FILTER_BYTES = MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER_BYTES + 5l*MemoryFootprint.REFERENCE_BYTES + 4l) +
+			MemoryFootprint.doubleArrayBytes(RecursiveTrackingFilter.NUM_STATES) + 3l*MemoryFootprint.matrixBytes(RecursiveTrackingFilter.NUM_STATES, RecursiveTrackingFilter.NUM_STATES) +
+			MemoryFootprint.matrixBytes(RecursiveTrackingFilter.NUM_STATES, 1);
+	
 	private final Coordinate relativeBaseline = new Coordinate();
 	private final Coordinate relativeVelocity = new Coordinate();
 	private final Coordinate relativeAcceleration = new Coordinate();
 	private final Coordinate deltaBaseline = new Coordinate();
-	private long previousEpoch = 0l;
+	private final WeightedLeastSquares leastSquares = new WeightedLeastSquares();
+	
+	// Per-satellite terms which remain constant throughout a single tracking solution, stored contiguously in tracking order
+	//   (slot i holds satellite trackedSatellites[i], and satelliteSlots maps each PRN back to its slot)
+	private final int[] trackedSatellites = new int[GpsConstants.MAX_PRN+1], satelliteSlots = new int[GpsConstants.MAX_PRN+1];
+	private final double[] satelliteOffsetX = new double[GpsConstants.MAX_PRN+1], satelliteOffsetY = new double[GpsConstants.MAX_PRN+1], satelliteOffsetZ = new double[GpsConstants.MAX_PRN+1];
+	private final double[] invariantResidual = new double[GpsConstants.MAX_PRN+1], satelliteWeight = new double[GpsConstants.MAX_PRN+1];
+	private int numTrackedSatellites = 0;
+	
+	// Linearization point and per-satellite rows of the most recent least squares solution (indexed by slot)
+	private final double[] rowX = new double[GpsConstants.MAX_PRN+1], rowY = new double[GpsConstants.MAX_PRN+1], rowZ = new double[GpsConstants.MAX_PRN+1];
+	private final double[] rowResidual = new double[GpsConstants.MAX_PRN+1], estimatedRange = new double[GpsConstants.MAX_PRN+1], residuals = new double[GpsConstants.MAX_PRN+1];
+	private double linearizationX = 0.0, linearizationY = 0.0, linearizationZ = 0.0, linearizationClockDriftSD = 0.0, estClockDriftSD = 0.0;
+	private long previousEpoch = 0l, lastObservationEpoch = 0l;
+	private TrackingMode trackingMode = TrackingMode.BATCH_LEAST_SQUARES;
+	private RecursiveTrackingFilter recursiveFilter = null;
+	private final SatelliteMask noExcludedSatellites = new SatelliteMask();
+	
+	public RelativeTrackingFilter() {}
+	public RelativeTrackingFilter(TrackingMode mode) { setTrackingMode(mode); }
+	
+	public TrackingMode getTrackingMode() { return trackingMode; }
+	public long getLastObservationEpoch() { return lastObservationEpoch; }
+	@Override
+	public long getLatestEpoch() { return lastObservationEpoch; }
+	@Override
+	public boolean hasPendingWork() { return false; }
+	public long getRetainedBytes() { return BATCH_FILTER_BYTES + ((recursiveFilter != null) ? RECURSIVE_FILTER_BYTES : 0l); }
+	public void setTrackingMode(TrackingMode mode)
+	{
+		// Start the recursive filter from the current batch estimates when switching modes
+		if ((mode == TrackingMode.RECURSIVE_KALMAN) && (trackingMode != TrackingMode.RECURSIVE_KALMAN))
+		{
+			if (recursiveFilter == null)
+				recursiveFilter = new RecursiveTrackingFilter();
+			recursiveFilter.initialize(relativeBaseline, relativeVelocity);
+		}
+		trackingMode = mode;
+	}
 	
-	public void updateEstimatedBaseline(final Coordinate estimatedBaseline) { relativeBaseline.setXYZ(estimatedBaseline.X, estimatedBaseline.Y, estimatedBaseline.Z); }
+	public TrackingState getTrackingState() { return new TrackingState(previousEpoch, relativeBaseline, relativeVelocity, relativeAcceleration); }
+	
+	public void restoreTrackingState(final TrackingState state)
+	{
+		previousEpoch = state.epoch;
+		lastObservationEpoch = state.epoch;
+		relativeBaseline.setCoordinates(state.baseline);
+		relativeVelocity.setCoordinates(state.velocity);
+		relativeAcceleration.setCoordinates(state.acceleration);
+		if (trackingMode == TrackingMode.RECURSIVE_KALMAN)
+			recursiveFilter.initialize(relativeBaseline, relativeVelocity);
+	}
+	
+	public void updateEstimatedBaseline(final Coordinate estimatedBaseline)
+	{
+		relativeBaseline.setXYZ(estimatedBaseline.X, estimatedBaseline.Y, estimatedBaseline.Z);
+		if (trackingMode == TrackingMode.RECURSIVE_KALMAN)
+			recursiveFilter.setBaseline(relativeBaseline);
+	}
 	
 	// Returns the confidence index for the tracking update
 	//   0 = Good (Successful tracking with 5+ satellites)
 	//   1 = Fair (Successful tracking with 4 satellites and no clock bias estimation)
 	//   2... = Extrapolated (where 'value-1' = number of epochs extrapolated over)
 	//  -1 = Bad (Could not track)
-	public int trackReceiver(final PairwiseData observation, final Coordinate baselineResult, final Coordinate trackingResult, final ArrayList<Integer> ignoredSatellites)
+	public int trackReceiver(final PairwiseData observation, final Coordinate baselineResult, final Coordinate trackingResult, final SatelliteMask ignoredSatellites)
+	{
+		return trackReceiver(observation, baselineResult, trackingResult, ignoredSatellites, noExcludedSatellites);
+	}
+	
+	// Tracks without using any of the given excluded satellites, which are also reported as ignored
+	public int trackReceiver(final PairwiseData observation, final Coordinate baselineResult, final Coordinate trackingResult, final SatelliteMask ignoredSatellites,
+			final SatelliteMask excludedSatellites)
 	{
 		int confidenceIndex = -1;
+		lastObservationEpoch = observation.receiveEpoch;
 		if (observation.receiveEpoch - previousEpoch == 1l)		// Standard tracking update
 		{
 			// Perform tracking using temporal double difference
-			ignoredSatellites.clear();
-			confidenceIndex = trackUsingTemporalDoubleDifference(observation, ignoredSatellites);
-			
-			// If could not successfully track
-			if (confidenceIndex == 2)
+			ignoredSatellites.setMask(excludedSatellites);
+			if (trackingMode == TrackingMode.RECURSIVE_KALMAN)
+				confidenceIndex = trackUsingRecursiveFilter(observation, ignoredSatellites, excludedSatellites);
+			else
 			{
-				// Extrapolate current velocity
-				relativeVelocity.setXYZ(relativeVelocity.X + relativeAcceleration.X,
-						relativeVelocity.Y + relativeAcceleration.Y,
-						relativeVelocity.Z + relativeAcceleration.Z);
+				confidenceIndex = trackUsingTemporalDoubleDifference(observation, ignoredSatellites, excludedSatellites);
+				
+				// If could not successfully track
+				if (confidenceIndex == 2)
+				{
+					// Extrapolate current velocity
+					relativeVelocity.setXYZ(relativeVelocity.X + relativeAcceleration.X,
+							relativeVelocity.Y + relativeAcceleration.Y,
+							relativeVelocity.Z + relativeAcceleration.Z);
+				}
+				
+				// Update relative baseline estimate
+				relativeBaseline.setXYZ(relativeBaseline.X + relativeVelocity.X,
+						relativeBaseline.Y + relativeVelocity.Y,
+						relativeBaseline.Z + relativeVelocity.Z);
 			}
-			
-			// Update relative baseline estimate
-			relativeBaseline.setXYZ(relativeBaseline.X + relativeVelocity.X,
-					relativeBaseline.Y + relativeVelocity.Y,
-					relativeBaseline.Z + relativeVelocity.Z);
 		}
 		else if (observation.receiveEpoch - previousEpoch > GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE)		// Long loss of all locks
 		{
@@ -73,6 +173,8 @@ public final class RelativeTrackingFilter
 					observation.remote.absoluteLocation.Z - observation.local.absoluteLocation.Z);
 			relativeVelocity.setXYZ(0.0, 0.0, 0.0);
 			relativeAcceleration.setXYZ(0.0, 0.0, 0.0);
+			if (trackingMode == TrackingMode.RECURSIVE_KALMAN)
+				recursiveFilter.initialize(relativeBaseline, relativeVelocity);
 		}
 		else																// Loss of lock less than 5 seconds long
 		{
@@ -81,15 +183,22 @@ public final class RelativeTrackingFilter
 			// Extrapolate through missing epochs
 			while (observation.receiveEpoch > previousEpoch)
 			{
-				relativeVelocity.setXYZ(relativeVelocity.X + relativeAcceleration.X,
-						relativeVelocity.Y + relativeAcceleration.Y,
-						relativeVelocity.Z + relativeAcceleration.Z);
-				relativeBaseline.setXYZ(relativeBaseline.X + relativeVelocity.X,
-						relativeBaseline.Y + relativeVelocity.Y,
-						relativeBaseline.Z + relativeVelocity.Z);
+				if (trackingMode == TrackingMode.RECURSIVE_KALMAN)
+					recursiveFilter.predict();
+				else
+				{
+					relativeVelocity.setXYZ(relativeVelocity.X + relativeAcceleration.X,
+							relativeVelocity.Y + relativeAcceleration.Y,
+							relativeVelocity.Z + relativeAcceleration.Z);
+					relativeBaseline.setXYZ(relativeBaseline.X + relativeVelocity.X,
+							relativeBaseline.Y + relativeVelocity.Y,
+							relativeBaseline.Z + relativeVelocity.Z);
+				}
 				++previousEpoch;
 				++confidenceIndex;
 			}
+			if (trackingMode == TrackingMode.RECURSIVE_KALMAN)
+				copyRecursiveFilterState();
 		}
 		
 		// Update epoch based on success of relative tracking procedure
@@ -107,117 +216,51 @@ public final class RelativeTrackingFilter
 	//   0 = Good (5+ satellites)
 	//   1 = Fair (4 satellites, no estimation of clock drift SD)
 	//   2 = Bad (could not track)
-	private int trackUsingTemporalDoubleDifference(final PairwiseData observation, final ArrayList<Integer> ignoredSatellites)
+	private int trackUsingTemporalDoubleDifference(final PairwiseData observation, final SatelliteMask ignoredSatellites, final SatelliteMask excludedSatellites)
 	{
 		if (!observation.hasPreviousData)
 			return 2;
-		int numValid = 0, iterations = 0;
-		for (ManipulatedData datum : observation.manipulatedData.values())
-			if (datum.isTemporallyValid)
-				++numValid;
-		
-		Matrix residuals, cosCoeffs, cosCoeffsTrans, intermediateMatrix1, intermediateMatrix2, deltaDeltaPos = new Matrix(4, 1);
+		int numValid = cacheInvariantSatelliteTerms(observation, excludedSatellites);
 		double calcClockDriftSD = (observation.remote.receiverClockDrift - observation.local.receiverClockDrift) * GpsConstants.SPEED_OF_LIGHT;
-		double estRange, estTDD, estClockDriftSD, residual, currentClockDriftSDError = 0.0, previousClockDriftSDError = Double.MAX_VALUE;
-		boolean measurementError = true, estimateClockDriftSD = true;
+		double residual, currentClockDriftSDError = 0.0, previousClockDriftSDError = Double.MAX_VALUE;
+		boolean measurementError = true, estimateClockDriftSD = true, relinearize = true;
 		int lastSatelliteIgnored = 0, lastSatelliteAlmostIgnored = 0;
 		
+		deltaBaseline.setXYZ(0.0, 0.0, 0.0);
+		estClockDriftSD = calcClockDriftSD;
 		while (measurementError)
 		{
 			if (numValid < 4)
 				return 2;
-			else if (numValid == 4)
+			else if ((numValid == 4) && estimateClockDriftSD)
+			{
+				// Restart from the measured clock drift SD, since the 4-parameter estimate may be contaminated by the excluded satellites
 				estimateClockDriftSD = false;
+				relinearize = true;
+				deltaBaseline.setXYZ(0.0, 0.0, 0.0);
+				estClockDriftSD = calcClockDriftSD;
+			}
 			
-			deltaBaseline.setXYZ(0.0, 0.0, 0.0);
-			estClockDriftSD = calcClockDriftSD;
-			iterations = 0;
-			residuals = new Matrix(numValid, 1);
-			cosCoeffs = new Matrix(numValid, estimateClockDriftSD ? 4 : 3);
-			cosCoeffsTrans = new Matrix(estimateClockDriftSD ? 4 : 3, numValid);
+			// Iterate to the weighted least squares solution only when the previous linearization can no longer be reused
+			if (relinearize && !iterateLeastSquaresSolution(ignoredSatellites, estimateClockDriftSD))
+				return 2;
 			
-			do
-			{
-				int index = 0;
-				for (Integer PRN : observation.manipulatedData.keySet())
-				{
-					if (!observation.manipulatedData.get(PRN).isTemporallyValid || ignoredSatellites.contains(PRN))
-						continue;
-					
-					SatelliteObservation local = observation.local.observations.getSatelliteData(PRN), remote = observation.remote.observations.getSatelliteData(PRN);
-					SatelliteObservation previousLocal = observation.previousLocal.observations.getSatelliteData(PRN), previousRemote = observation.previousRemote.observations.getSatelliteData(PRN);
-					double weight = ((local.signalStrength-GpsConstants.MIN_SIGNAL_STRENGTH)/44.0) + ((remote.signalStrength-GpsConstants.MIN_SIGNAL_STRENGTH)/44.0);
-					
-					// Calculate direction cosines of unit vector from receiver to satellite
-					estRange = Math.sqrt((remote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X-deltaBaseline.X)*(remote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X-deltaBaseline.X) +
-										 (remote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y-deltaBaseline.Y)*(remote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y-deltaBaseline.Y) +
-										 (remote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z-deltaBaseline.Z)*(remote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z-deltaBaseline.Z));
-					estTDD = estRange -
-							Math.sqrt((local.ephemerisDatum.X-observation.referencePosition.X)*(local.ephemerisDatum.X-observation.referencePosition.X) +
-									 (local.ephemerisDatum.Y-observation.referencePosition.Y)*(local.ephemerisDatum.Y-observation.referencePosition.Y) +
-									 (local.ephemerisDatum.Z-observation.referencePosition.Z)*(local.ephemerisDatum.Z-observation.referencePosition.Z)) -
-							Math.sqrt((previousRemote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X)*(previousRemote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X) +
-									 (previousRemote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y)*(previousRemote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y) +
-									 (previousRemote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z)*(previousRemote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z)) +
-							Math.sqrt((previousLocal.ephemerisDatum.X-observation.referencePosition.X)*(previousLocal.ephemerisDatum.X-observation.referencePosition.X) +
-									 (previousLocal.ephemerisDatum.Y-observation.referencePosition.Y)*(previousLocal.ephemerisDatum.Y-observation.referencePosition.Y) +
-									 (previousLocal.ephemerisDatum.Z-observation.referencePosition.Z)*(previousLocal.ephemerisDatum.Z-observation.referencePosition.Z)) + estClockDriftSD;
-					cosCoeffs.setValueAt(index, 0, ((remote.ephemerisDatum.X - observation.referencePosition.X - relativeBaseline.X - deltaBaseline.X) / estRange) * weight);
-					cosCoeffs.setValueAt(index, 1, ((remote.ephemerisDatum.Y - observation.referencePosition.Y - relativeBaseline.Y - deltaBaseline.Y) / estRange) * weight);
-					cosCoeffs.setValueAt(index, 2, ((remote.ephemerisDatum.Z - observation.referencePosition.Z - relativeBaseline.Z - deltaBaseline.Z) / estRange) * weight);
-					if (estimateClockDriftSD)
-						cosCoeffs.setValueAt(index, 3, -1.0 * weight);
-					residuals.setValueAt(index, 0, (estTDD - observation.manipulatedData.get(PRN).doubleDifferenceTemporalCarrierRange) * weight);
-					++index;
-				}
-		
-				// Solve for user position error using weighted least squares estimation
-				//   (normal equation: deltaX = (H^T*H)^-1*H^T*deltaC R)
-				cosCoeffs.matrixTranspose(cosCoeffsTrans);
-				intermediateMatrix1 = cosCoeffsTrans.matrixMultiply(cosCoeffs);
-				intermediateMatrix1.matrixInvertInPlace();
-				intermediateMatrix2 = intermediateMatrix1.matrixMultiply(cosCoeffsTrans);
-				intermediateMatrix2.matrixMultiply(deltaDeltaPos, residuals);
-	
-				// Make sure there isn't an obvious error as evinced by a wrong clock drift SD estimate
-				if (iterations == 0)
-					currentClockDriftSDError = estimateClockDriftSD ? Math.abs(deltaDeltaPos.valueAt(3)) : -Double.MAX_VALUE;
-				
-				// Use position errors to estimate receiver position
-				deltaBaseline.X += deltaDeltaPos.valueAt(0);
-				deltaBaseline.Y += deltaDeltaPos.valueAt(1);
-				deltaBaseline.Z += deltaDeltaPos.valueAt(2);
-				if (estimateClockDriftSD)
-					estClockDriftSD += deltaDeltaPos.valueAt(3);
-			} while ((Math.sqrt((deltaDeltaPos.valueAt(0)*deltaDeltaPos.valueAt(0)) + (deltaDeltaPos.valueAt(1)*deltaDeltaPos.valueAt(1)) + (deltaDeltaPos.valueAt(2)*deltaDeltaPos.valueAt(2))) > 0.001) && (iterations++ != 10));
+			// Make sure there isn't an obvious error as evinced by a wrong clock drift SD estimate
+			currentClockDriftSDError = estimateClockDriftSD ? Math.abs(estClockDriftSD - calcClockDriftSD) : -Double.MAX_VALUE;
 			
-			// Calculate unweighted residuals based on weighted solution
+			// Calculate unweighted residuals of all satellites based on weighted solution
 			double maxResidual = -Double.MAX_VALUE, secondMaxResidual = -Double.MAX_VALUE;
 			int satWithMaxError = 0, satWithSecondMaxError = 0;
-			for (Integer PRN : observation.manipulatedData.keySet())
+			SatelliteGeometry.computeRanges(satelliteOffsetX, satelliteOffsetY, satelliteOffsetZ, numTrackedSatellites, deltaBaseline.X, deltaBaseline.Y, deltaBaseline.Z, estimatedRange);
+			SatelliteGeometry.computeResiduals(estimatedRange, invariantResidual, estClockDriftSD, numTrackedSatellites, residuals);
+			for (int i = 0; i < numTrackedSatellites; ++i)
 			{
-				if (!observation.manipulatedData.get(PRN).isTemporallyValid || ignoredSatellites.contains(PRN))
+				int PRN = trackedSatellites[i];
+				if (ignoredSatellites.contains(PRN))
 					continue;
 				
-				SatelliteObservation local = observation.local.observations.getSatelliteData(PRN), remote = observation.remote.observations.getSatelliteData(PRN);
-				SatelliteObservation previousLocal = observation.previousLocal.observations.getSatelliteData(PRN), previousRemote = observation.previousRemote.observations.getSatelliteData(PRN);
-				
-				// Calculate direction cosines of unit vector from receiver to satellite
-				estTDD = Math.sqrt((remote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X-deltaBaseline.X)*(remote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X-deltaBaseline.X) +
-								   (remote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y-deltaBaseline.Y)*(remote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y-deltaBaseline.Y) +
-								   (remote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z-deltaBaseline.Z)*(remote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z-deltaBaseline.Z)) -
-						 Math.sqrt((local.ephemerisDatum.X-observation.referencePosition.X)*(local.ephemerisDatum.X-observation.referencePosition.X) +
-								   (local.ephemerisDatum.Y-observation.referencePosition.Y)*(local.ephemerisDatum.Y-observation.referencePosition.Y) +
-								   (local.ephemerisDatum.Z-observation.referencePosition.Z)*(local.ephemerisDatum.Z-observation.referencePosition.Z)) -
-						 Math.sqrt((previousRemote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X)*(previousRemote.ephemerisDatum.X-observation.referencePosition.X-relativeBaseline.X) +
-								   (previousRemote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y)*(previousRemote.ephemerisDatum.Y-observation.referencePosition.Y-relativeBaseline.Y) +
-								   (previousRemote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z)*(previousRemote.ephemerisDatum.Z-observation.referencePosition.Z-relativeBaseline.Z)) +
-						 Math.sqrt((previousLocal.ephemerisDatum.X-observation.referencePosition.X)*(previousLocal.ephemerisDatum.X-observation.referencePosition.X) +
-								   (previousLocal.ephemerisDatum.Y-observation.referencePosition.Y)*(previousLocal.ephemerisDatum.Y-observation.referencePosition.Y) +
-								   (previousLocal.ephemerisDatum.Z-observation.referencePosition.Z)*(previousLocal.ephemerisDatum.Z-observation.referencePosition.Z)) + estClockDriftSD;
-				
 				// Find satellite with first and second greatest residuals
-				residual = Math.abs(estTDD - observation.manipulatedData.get(PRN).doubleDifferenceTemporalCarrierRange);
+				residual = Math.abs(residuals[i]);
 				if (residual > maxResidual)
 				{
 					secondMaxResidual = maxResidual;
@@ -232,15 +275,17 @@ public final class RelativeTrackingFilter
 				}
 			}
 			
-			// Decide whether to accept solution or retry
+			// Decide whether to accept solution or retry, removing (or restoring) satellites from the existing
+			//   factorization rather than re-solving from scratch
 			if (!estimateClockDriftSD && (maxResidual < (GpsConstants.LAMBDA_L1 * 0.5)))
 				measurementError = false;
 			else if ((maxResidual < (GpsConstants.LAMBDA_L1 * 0.2)) && (currentClockDriftSDError < 1.5))
 				measurementError = false;
 			else if (currentClockDriftSDError > previousClockDriftSDError)
 			{
-				ignoredSatellites.remove((Integer)lastSatelliteIgnored);
+				ignoredSatellites.remove(lastSatelliteIgnored);
 				ignoredSatellites.add(lastSatelliteAlmostIgnored);
+				relinearize = !exchangeSatellites(lastSatelliteIgnored, lastSatelliteAlmostIgnored);
 				lastSatelliteIgnored = lastSatelliteAlmostIgnored;
 				lastSatelliteAlmostIgnored = satWithMaxError;
 				previousClockDriftSDError = currentClockDriftSDError;
@@ -248,6 +293,7 @@ public final class RelativeTrackingFilter
 			else
 			{
 				ignoredSatellites.add(satWithMaxError);
+				relinearize = !exchangeSatellites(0, satWithMaxError);
 				lastSatelliteIgnored = satWithMaxError;
 				lastSatelliteAlmostIgnored = satWithSecondMaxError;
 				previousClockDriftSDError = currentClockDriftSDError;
@@ -269,4 +315,173 @@ public final class RelativeTrackingFilter
 		
 		return (estimateClockDriftSD ? 0 : 1);
 	}
+	
+	// Returns the confidence value for the tracking update (same values as trackUsingTemporalDoubleDifference), leaving
+	//   the baseline and velocity at their predicted values if a measurement update could not be performed
+	private int trackUsingRecursiveFilter(final PairwiseData observation, final SatelliteMask ignoredSatellites, final SatelliteMask excludedSatellites)
+	{
+		// Cache all satellite terms relative to the previous baseline before propagating the filter forward by one epoch
+		int numValid = observation.hasPreviousData ? cacheInvariantSatelliteTerms(observation, excludedSatellites) : 0, confidenceIndex = 2;
+		double calcClockDriftSD = (observation.remote.receiverClockDrift - observation.local.receiverClockDrift) * GpsConstants.SPEED_OF_LIGHT;
+		recursiveFilter.predict();
+		
+		// Perform a single measurement update linearized about the predicted baseline
+		double stepX = recursiveFilter.getState(0) - relativeBaseline.X, stepY = recursiveFilter.getState(1) - relativeBaseline.Y, stepZ = recursiveFilter.getState(2) - relativeBaseline.Z;
+		if ((numValid >= 4) && recursiveFilter.beginUpdate(calcClockDriftSD))
+		{
+			SatelliteGeometry.computeLineOfSight(satelliteOffsetX, satelliteOffsetY, satelliteOffsetZ, numTrackedSatellites, stepX, stepY, stepZ, estimatedRange, rowX, rowY, rowZ);
+			SatelliteGeometry.computeResiduals(estimatedRange, invariantResidual, recursiveFilter.getState(6), numTrackedSatellites, rowResidual);
+			for (int i = 0; i < numTrackedSatellites; ++i)
+			{
+				// Satellites with innovations outside of the gate are excluded
+				if (!recursiveFilter.addMeasurement(rowX[i], rowY[i], rowZ[i], rowResidual[i], satelliteWeight[i]*satelliteWeight[i]))
+					ignoredSatellites.add(trackedSatellites[i]);
+			}
+			
+			if ((recursiveFilter.getNumMeasurements() >= 4) && recursiveFilter.completeUpdate(GpsConstants.MAX_SINGLE_EPOCH_CHANGE_IN_BASELINE_LENGTH))
+				confidenceIndex = (recursiveFilter.getNumMeasurements() > 4) ? 0 : 1;
+		}
+		
+		copyRecursiveFilterState();
+		return confidenceIndex;
+	}
+	
+	private void copyRecursiveFilterState()
+	{
+		relativeBaseline.setXYZ(recursiveFilter.getState(0), recursiveFilter.getState(1), recursiveFilter.getState(2));
+		relativeVelocity.setXYZ(recursiveFilter.getState(3), recursiveFilter.getState(4), recursiveFilter.getState(5));
+		relativeAcceleration.setXYZ(0.0, 0.0, 0.0);
+	}
+	
+	// Performs Gauss-Newton iterations starting from the current estimate, storing the rows of all tracked satellites
+	//   at the final linearization point so that they can later be removed from or restored to the solution
+	private boolean iterateLeastSquaresSolution(final SatelliteMask ignoredSatellites, boolean estimateClockDriftSD)
+	{
+		double stepSize;
+		int iterations = 0;
+		
+		do
+		{
+			linearizationX = deltaBaseline.X;
+			linearizationY = deltaBaseline.Y;
+			linearizationZ = deltaBaseline.Z;
+			linearizationClockDriftSD = estClockDriftSD;
+			leastSquares.reset(estimateClockDriftSD ? 4 : 3);
+			
+			// Calculate direction cosines of unit vectors from receiver to all satellites at once (only the current remote range
+			//   changes between iterations)
+			SatelliteGeometry.computeLineOfSight(satelliteOffsetX, satelliteOffsetY, satelliteOffsetZ, numTrackedSatellites,
+					deltaBaseline.X, deltaBaseline.Y, deltaBaseline.Z, estimatedRange, rowX, rowY, rowZ);
+			SatelliteGeometry.computeResiduals(estimatedRange, invariantResidual, estClockDriftSD, numTrackedSatellites, rowResidual);
+			
+			// Accumulate the rows of direction cosines (rows are weighted, so the effective weight is squared)
+			for (int i = 0; i < numTrackedSatellites; ++i)
+				if (!ignoredSatellites.contains(trackedSatellites[i]))
+					leastSquares.addObservation(rowX[i], rowY[i], rowZ[i], -1.0, rowResidual[i], satelliteWeight[i]*satelliteWeight[i]);
+			
+			// Solve for user position error using weighted least squares estimation
+			//   (normal equation: deltaX = (H^T*W*H)^-1*H^T*W*deltaC R)
+			if (!leastSquares.solve())
+				return false;
+			stepSize = applyLeastSquaresSolution();
+		} while ((stepSize > 0.001) && (iterations++ != 10));
+		
+		return true;
+	}
+	
+	// Restores one satellite (if non-zero) to and removes another from the current solution using rank-one updates of the
+	//   existing factorization (returns false if the solution must instead be re-linearized)
+	private boolean exchangeSatellites(int restoredSatellite, int removedSatellite)
+	{
+		if (removedSatellite == 0)
+			return false;
+		int restored = satelliteSlots[restoredSatellite], removed = satelliteSlots[removedSatellite];
+		if ((restoredSatellite != 0) && !leastSquares.restoreObservation(rowX[restored], rowY[restored], rowZ[restored], -1.0,
+				rowResidual[restored], satelliteWeight[restored]*satelliteWeight[restored]))
+			return false;
+		if (!leastSquares.removeObservation(rowX[removed], rowY[removed], rowZ[removed], -1.0,
+				rowResidual[removed], satelliteWeight[removed]*satelliteWeight[removed]))
+			return false;
+		
+		return (applyLeastSquaresSolution() <= MAX_LINEAR_EXCLUSION_STEP);
+	}
+	
+	// Updates the estimated change in baseline and clock drift from the linearization point, returning the position step size
+	private double applyLeastSquaresSolution()
+	{
+		double deltaX = leastSquares.getSolution(0), deltaY = leastSquares.getSolution(1), deltaZ = leastSquares.getSolution(2);
+		deltaBaseline.X = linearizationX + deltaX;
+		deltaBaseline.Y = linearizationY + deltaY;
+		deltaBaseline.Z = linearizationZ + deltaZ;
+		estClockDriftSD = (leastSquares.getNumParameters() == WeightedLeastSquares.MAX_PARAMETERS) ? (linearizationClockDriftSD + leastSquares.getSolution(3)) : linearizationClockDriftSD;
+		return Math.sqrt((deltaX*deltaX) + (deltaY*deltaY) + (deltaZ*deltaZ));
+	}
+	
+	// Computes the residual of every usable satellite at the currently predicted change in baseline (with the common clock
+	//   term removed by subtracting the median residual) without modifying the tracking state, returning the number of
+	//   satellites screened or 0 if this observation does not continue the previously tracked epoch
+	int screenSatellites(final PairwiseData observation, final int[] screenedSatellites, final double[] predictedResidual, final double[] scratch)
+	{
+		if ((observation.receiveEpoch - previousEpoch != 1l) || !observation.hasPreviousData)
+			return 0;
+		int numScreened = cacheInvariantSatelliteTerms(observation, noExcludedSatellites);
+		
+		// Predict the change in baseline using the current velocity estimate
+		SatelliteGeometry.computeRanges(satelliteOffsetX, satelliteOffsetY, satelliteOffsetZ, numScreened, relativeVelocity.X, relativeVelocity.Y, relativeVelocity.Z, estimatedRange);
+		SatelliteGeometry.computeResiduals(estimatedRange, invariantResidual, 0.0, numScreened, residuals);
+		for (int i = 0; i < numScreened; ++i)
+		{
+			int PRN = trackedSatellites[i];
+			screenedSatellites[i] = PRN;
+			predictedResidual[PRN] = residuals[i];
+			
+			// Insertion sort into the scratch array to find the median
+			int j = i;
+			for (; (j > 0) && (scratch[j-1] > predictedResidual[PRN]); --j)
+				scratch[j] = scratch[j-1];
+			scratch[j] = predictedResidual[PRN];
+		}
+		
+		// Remove the common clock term
+		if (numScreened > 0)
+		{
+			double median = ((numScreened % 2) == 1) ? scratch[numScreened/2] : (0.5 * (scratch[numScreened/2 - 1] + scratch[numScreened/2]));
+			for (int i = 0; i < numScreened; ++i)
+				predictedResidual[screenedSatellites[i]] -= median;
+		}
+		
+		return numScreened;
+	}
+	
+	// Caches all terms of the temporal double difference which do not depend on the change in baseline being solved for:
+	//   the offset from the estimated remote position to each satellite, the weight of each satellite, and the sum of the
+	//   local, previous local, and previous remote ranges minus the measured temporal double difference
+	private int cacheInvariantSatelliteTerms(final PairwiseData observation, final SatelliteMask excludedSatellites)
+	{
+		// Local satellite ranges are shared by all pairs at this epoch and were computed once in the data aggregator
+		final LocalEpochContext localContext = observation.localContext;
+		double remoteX = observation.referencePosition.X + relativeBaseline.X, remoteY = observation.referencePosition.Y + relativeBaseline.Y, remoteZ = observation.referencePosition.Z + relativeBaseline.Z;
+		
+		numTrackedSatellites = 0;
+		for (int i = 0; i < observation.numCommonSatellites; ++i)
+		{
+			int PRN = observation.commonSatellites[i];
+			if (!observation.isTemporallyValid[PRN] || excludedSatellites.contains(PRN))
+				continue;
+			
+			SatelliteObservation remote = observation.remote.observations.getSatelliteData(PRN), previousRemote = observation.previousRemote.observations.getSatelliteData(PRN);
+			double previousX = previousRemote.ephemerisDatum.X - remoteX, previousY = previousRemote.ephemerisDatum.Y - remoteY, previousZ = previousRemote.ephemerisDatum.Z - remoteZ;
+			int slot = numTrackedSatellites++;
+			trackedSatellites[slot] = PRN;
+			satelliteSlots[PRN] = slot;
+			satelliteOffsetX[slot] = remote.ephemerisDatum.X - remoteX;
+			satelliteOffsetY[slot] = remote.ephemerisDatum.Y - remoteY;
+			satelliteOffsetZ[slot] = remote.ephemerisDatum.Z - remoteZ;
+			satelliteWeight[slot] = localContext.localSignalWeight[PRN] + ((remote.signalStrength-GpsConstants.MIN_SIGNAL_STRENGTH)/44.0);
+			invariantResidual[slot] = localContext.previousLocalSatelliteRange[PRN] - localContext.localSatelliteRange[PRN] -
+					Math.sqrt(previousX*previousX + previousY*previousY + previousZ*previousZ) - observation.doubleDifferenceTemporalCarrierRange[PRN];
+		}
+		
+		return numTrackedSatellites;
+	}
 }
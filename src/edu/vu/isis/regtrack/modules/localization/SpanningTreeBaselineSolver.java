@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.localization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import edu.vu.isis.regtrack.common.Coordinate;
+import edu.vu.isis.regtrack.common.GpsConstants;
+import edu.vu.isis.regtrack.common.LocalEpochContext;
+import edu.vu.isis.regtrack.common.PairwiseData;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy;
+import edu.vu.isis.regtrack.common.RemoteRetentionPolicy.RetainedRemote;
+import edu.vu.isis.regtrack.common.Result;
+import edu.vu.isis.regtrack.common.SatelliteMask;
+import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
+import edu.vu.isis.regtrack.modules.localization.RelativeTrackingFilter.TrackingMode;
+import edu.vu.isis.regtrack.modules.localization.RelativeTrackingFilter.TrackingState;
+
+// Tracks only the baselines along the edges of a planned spanning tree (one tracking filter update per remote), composing
+//   the relative position of each remote from the local receiver along its path through the tree and accumulating the
+//   error bound of every edge on that path
+final class SpanningTreeBaselineSolver
+{
+	private static final class EdgeTracker implements RetainedRemote
+	{
+		public final String parentID;
+		public final RelativeTrackingFilter trackingFilter;
+		public long latestEpoch = 0l;
+		
+		// Temporary edge (and its parent) used while the actual parent is briefly missing
+		public String detourParentID = null;
+		public RelativeTrackingFilter detourFilter = null;
+		
+		// Two most recent successfully composed baselines of the child, used to seed edges after re-parenting
+		private Coordinate composedBaseline = new Coordinate(), previousComposedBaseline = new Coordinate();
+		private long composedEpoch = 0l, previousComposedEpoch = 0l;
+		
+		public EdgeTracker(final String parentReceiverID) { this(parentReceiverID, new RelativeTrackingFilter()); }
+		public EdgeTracker(final String parentReceiverID, final RelativeTrackingFilter edgeFilter) { parentID = parentReceiverID; trackingFilter = edgeFilter; }
+		
+		@Override
+		public long getLatestEpoch() { return latestEpoch; }
+		@Override
+		public boolean hasPendingWork() { return false; }
+		
+		public Coordinate getComposedBaseline(long epoch) { return (epoch == 0l) ? null : (epoch == composedEpoch) ? composedBaseline : (epoch == previousComposedEpoch) ? previousComposedBaseline : null; }
+		public long getComposedEpoch() { return composedEpoch; }
+		public void setComposedBaseline(long epoch, final Coordinate baseline)
+		{
+			if (epoch != composedEpoch)
+			{
+				Coordinate oldest = previousComposedBaseline;
+				previousComposedBaseline = composedBaseline;
+				previousComposedEpoch = composedEpoch;
+				composedBaseline = oldest;
+				composedEpoch = epoch;
+			}
+			composedBaseline.setCoordinates(baseline);
+		}
+	};
+	
+	// Error bound (in meters) added to an edge for each epoch it has been extrapolated, and multiplier applied to edges tracked
+	//   without clock drift estimation
+	private static final double EXTRAPOLATION_ERROR_PER_EPOCH = 0.5;
+	private static final double FAIR_EDGE_ERROR_SCALE = 2.0;
+	
+	// Member variables
+	private final BaselineTopologyPlanner topologyPlanner = new BaselineTopologyPlanner();
+	private final HashMap<String, EdgeTracker> edgeTrackers = new HashMap<String, EdgeTracker>();
+	private final HashMap<String, Integer> epochNodes = new HashMap<String, Integer>();
+	private final SatelliteMask rootSatellites = new SatelliteMask(), ignoredSatellites = new SatelliteMask();
+	private final Coordinate edgeBaseline = new Coordinate(), trackingResult = new Coordinate(), seedBaseline = new Coordinate(), zeroCoordinate = new Coordinate(0.0, 0.0, 0.0);
+	private Coordinate[] positions = new Coordinate[0], composedBaselines = new Coordinate[0];
+	private SatelliteMask[] satellites = new SatelliteMask[0];
+	private LocalEpochContext[] parentContexts = new LocalEpochContext[0];
+	private int[] currentParents = new int[0], confidences = new int[0];
+	private double[] errorBounds = new double[0];
+	
+	public int getNumRemotes() { return edgeTrackers.size(); }
+	
+	// Removes edges according to the given retention policy (edges to remotes missing from a single epoch are kept, so that
+	//   tracking continues once they return)
+	public void evictRemotes(final RemoteRetentionPolicy retentionPolicy, long currentEpoch) { retentionPolicy.trimRemotes(edgeTrackers, currentEpoch); }
+	
+	// Solves all pairs (which must share the same local epoch) and appends one composed result per pair
+	public void solve(final ArrayList<PairwiseData> epochObservations, final TrackingMode trackingMode, final ArrayList<Result> results)
+	{
+		int numNodes = epochObservations.size();
+		if (numNodes == 0)
+			return;
+		ensureCapacity(numNodes);
+		
+		// Gather the position, visible satellites, and current parent of every node
+		final PairwiseData rootObservation = epochObservations.get(0);
+		rootSatellites.clear();
+		for (int PRN : rootObservation.localContext.satellitesByElevation)
+			rootSatellites.add(PRN);
+		epochNodes.clear();
+		for (int i = 0; i < numNodes; ++i)
+			epochNodes.put(epochObservations.get(i).remote.ID, i);
+		for (int i = 0; i < numNodes; ++i)
+		{
+			final PairwiseData observation = epochObservations.get(i);
+			positions[i] = observation.remote.absoluteLocation;
+			satellites[i].clear();
+			for (Entry<Integer, SatelliteObservation> satellite : observation.remote.observations.getFullSatelliteCollection())
+				satellites[i].add(satellite.getKey());
+			parentContexts[i] = null;
+			
+			EdgeTracker edgeTracker = edgeTrackers.get(observation.remote.ID);
+			Integer parentIndex = (edgeTracker == null) ? null : (edgeTracker.parentID == null) ? Integer.valueOf(BaselineTopologyPlanner.ROOT) : epochNodes.get(edgeTracker.parentID);
+			currentParents[i] = (parentIndex == null) ? (BaselineTopologyPlanner.ROOT - 1) : parentIndex;
+		}
+		topologyPlanner.plan(rootObservation.local.absoluteLocation, rootSatellites, positions, satellites, currentParents, numNodes);
+		
+		// Track each edge from parent to child, composing results from the root outwards
+		for (int i = 0; i < numNodes; ++i)
+		{
+			int node = topologyPlanner.getOrderedNode(i), parent = topologyPlanner.getParent(node);
+			final PairwiseData observation = epochObservations.get(node);
+			
+			// Keep an edge while its parent is only briefly missing (tracking through a temporary edge in the meantime), and
+			//   seed the edge filter from the previously composed baselines whenever the parent of an edge changes
+			String parentID = (parent == BaselineTopologyPlanner.ROOT) ? null : epochObservations.get(parent).remote.ID;
+			EdgeTracker edgeTracker = edgeTrackers.get(observation.remote.ID);
+			RelativeTrackingFilter edgeFilter;
+			if (edgeTracker == null)
+			{
+				edgeTracker = new EdgeTracker(parentID);
+				edgeTrackers.put(observation.remote.ID, edgeTracker);
+				edgeFilter = edgeTracker.trackingFilter;
+			}
+			else if (parent == currentParents[node])
+			{
+				edgeTracker.detourParentID = null;
+				edgeTracker.detourFilter = null;
+				edgeFilter = edgeTracker.trackingFilter;
+			}
+			else if ((currentParents[node] == (BaselineTopologyPlanner.ROOT - 1)) && isParentBrieflyMissing(edgeTracker, observation.receiveEpoch))
+			{
+				if ((edgeTracker.detourFilter == null) || !sameReceiver(edgeTracker.detourParentID, parentID))
+				{
+					edgeTracker.detourParentID = parentID;
+					edgeTracker.detourFilter = new RelativeTrackingFilter();
+					seedEdgeFilter(edgeTracker.detourFilter, edgeTracker, parentID);
+				}
+				edgeFilter = edgeTracker.detourFilter;
+			}
+			else
+			{
+				EdgeTracker previousTracker = edgeTracker;
+				if ((previousTracker.detourFilter != null) && sameReceiver(previousTracker.detourParentID, parentID))
+					edgeTracker = new EdgeTracker(parentID, previousTracker.detourFilter);
+				else
+				{
+					edgeTracker = new EdgeTracker(parentID);
+					seedEdgeFilter(edgeTracker.trackingFilter, previousTracker, parentID);
+				}
+				if (previousTracker.getComposedEpoch() != 0l)
+					edgeTracker.setComposedBaseline(previousTracker.getComposedEpoch(), previousTracker.getComposedBaseline(previousTracker.getComposedEpoch()));
+				edgeTrackers.put(observation.remote.ID, edgeTracker);
+				edgeFilter = edgeTracker.trackingFilter;
+			}
+			edgeFilter.setTrackingMode(trackingMode);
+			edgeTracker.latestEpoch = observation.receiveEpoch;
+			
+			// Pair with the parent remote, sharing the parent-side terms among all of its children
+			PairwiseData edgeObservation = observation;
+			if (parent != BaselineTopologyPlanner.ROOT)
+			{
+				if (parentContexts[parent] == null)
+					parentContexts[parent] = new LocalEpochContext(epochObservations.get(parent).remote, epochObservations.get(parent).previousRemote);
+				edgeObservation = new PairwiseData(parentContexts[parent], observation.remote, observation.previousRemote);
+			}
+			int confidence = -1;
+			if (edgeObservation.referenceSatellite != 0)
+			{
+				confidence = edgeFilter.trackReceiver(edgeObservation, edgeBaseline, trackingResult, ignoredSatellites);
+				edgeFilter.updateEstimatedBaseline(edgeBaseline);
+			}
+			else
+				edgeBaseline.setXYZ(Double.NaN, Double.NaN, Double.NaN);		// No edge solution, so nothing to compose
+			
+			// Compose with the path to the parent
+			double edgeError = (confidence < 0) ? Double.MAX_VALUE : edgeErrorBound(edgeObservation, confidence);
+			if (parent == BaselineTopologyPlanner.ROOT)
+			{
+				composedBaselines[node].setXYZ(edgeBaseline.X, edgeBaseline.Y, edgeBaseline.Z);
+				confidences[node] = confidence;
+				errorBounds[node] = edgeError;
+			}
+			else
+			{
+				composedBaselines[node].setXYZ(composedBaselines[parent].X + edgeBaseline.X, composedBaselines[parent].Y + edgeBaseline.Y,
+						composedBaselines[parent].Z + edgeBaseline.Z);
+				confidences[node] = ((confidence < 0) || (confidences[parent] < 0)) ? -1 : Math.max(confidence, confidences[parent]);
+				errorBounds[node] = (confidences[node] < 0) ? Double.MAX_VALUE : (errorBounds[parent] + edgeError);
+			}
+			if (confidences[node] >= 0)
+				edgeTracker.setComposedBaseline(observation.receiveEpoch, composedBaselines[node]);
+			results.add(new Result(observation.remote.ID, composedBaselines[node], observation.receiveEpoch, (double)confidences[node],
+					(confidences[node] < 0) ? Double.NaN : errorBounds[node]));
+		}
+	}
+	
+	// Whether the parent of an edge has been missing for less than the longest tolerable tracking outage
+	private boolean isParentBrieflyMissing(final EdgeTracker edgeTracker, long currentEpoch)
+	{
+		EdgeTracker parentTracker = (edgeTracker.parentID == null) ? null : edgeTrackers.get(edgeTracker.parentID);
+		return (parentTracker != null) && ((currentEpoch - parentTracker.latestEpoch) < GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE);
+	}
+	
+	// Starts a new edge filter from the difference between the last composed baselines of the child and its new parent (both
+	//   taken at the same epoch), leaving the filter to cold start if either is unavailable
+	private void seedEdgeFilter(final RelativeTrackingFilter edgeFilter, final EdgeTracker childTracker, final String newParentID)
+	{
+		long seedEpoch = childTracker.getComposedEpoch();
+		Coordinate childBaseline = childTracker.getComposedBaseline(seedEpoch);
+		if (childBaseline == null)
+			return;
+		seedBaseline.setCoordinates(childBaseline);
+		if (newParentID != null)
+		{
+			EdgeTracker parentTracker = edgeTrackers.get(newParentID);
+			Coordinate parentBaseline = (parentTracker == null) ? null : parentTracker.getComposedBaseline(seedEpoch);
+			if (parentBaseline == null)
+				return;
+			seedBaseline.setXYZ(seedBaseline.X - parentBaseline.X, seedBaseline.Y - parentBaseline.Y, seedBaseline.Z - parentBaseline.Z);
+		}
+		edgeFilter.restoreTrackingState(new TrackingState(seedEpoch, seedBaseline, zeroCoordinate, zeroCoordinate));
+	}
+	
+	private static boolean sameReceiver(final String firstID, final String secondID) { return (firstID == null) ? (secondID == null) : firstID.equals(secondID); }
+	
+	private static double edgeErrorBound(final PairwiseData edgeObservation, int confidence)
+	{
+		double expectedError = BaselineTopologyPlanner.expectedEdgeError(edgeObservation.referencePosition, edgeObservation.remote.absoluteLocation);
+		if (confidence == 0)
+			return expectedError;
+		else if (confidence == 1)
+			return FAIR_EDGE_ERROR_SCALE * expectedError;
+		return (FAIR_EDGE_ERROR_SCALE * expectedError) + ((confidence - 1) * EXTRAPOLATION_ERROR_PER_EPOCH);
+	}
+	
+	private void ensureCapacity(int nodes)
+	{
+		if (positions.length >= nodes)
+			return;
+		positions = new Coordinate[nodes];
+		composedBaselines = new Coordinate[nodes];
+		satellites = new SatelliteMask[nodes];
+		parentContexts = new LocalEpochContext[nodes];
+		currentParents = new int[nodes];
+		confidences = new int[nodes];
+		errorBounds = new double[nodes];
+		for (int i = 0; i < nodes; ++i)
+		{
+			composedBaselines[i] = new Coordinate();
+			satellites[i] = new SatelliteMask();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.networkmanager;
+
+import java.util.ArrayList;
+
+import edu.vu.isis.regtrack.common.EphemerisDatum;
+
+// Local source and destination of the broadcast ephemerides shared with peers over the network
+public interface EphemerisExchange
+{
+	// Returns copies of all GPS ephemerides currently known locally
+	public ArrayList<EphemerisDatum> getEphemerides();
+	public int getNumEphemerides();
+	
+	// Offers an ephemeris received from a peer, returning true if it was adopted
+	public boolean offerEphemeris(final EphemerisDatum ephDatum);
+}
@@ -23,21 +23,35 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import edu.vu.isis.regtrack.common.ByteStream;
-import edu.vu.isis.regtrack.common.Coordinate;
+import edu.vu.isis.regtrack.common.DataCodec;
 import edu.vu.isis.regtrack.common.EphemerisDatum;
+import edu.vu.isis.regtrack.common.GpsConstants;
 import edu.vu.isis.regtrack.common.ProcessedData;
-import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
 import edu.vu.isis.messaging.RLMessage;
 import edu.vu.isis.messaging.RLMessageType;
 import edu.vu.isis.messaging.RLModule;
 
 public final class NetworkManager extends RLModule
 {
+	// Ephemeris sharing parameters (in epochs): ephemeris tables are advertised periodically, and immediately (at most once
+	//   per epoch) whenever a peer advertises a newer ephemeris or fewer ephemerides than needed for a fix are known locally
+	private static final long EPHEMERIS_ADVERTISEMENT_INTERVAL = 10l;
+	private static final long EPHEMERIS_PUSH_INTERVAL = 2l;
+	private static final int MIN_USABLE_EPHEMERIDES = 4;
+	
 	// Member variables
 	private final String receiverID;
+	private final long receiverHandle;
+	private volatile NetworkPacketFilter packetFilter = new ReceiverPacketFilter();
+	private volatile EphemerisExchange ephemerisExchange = null;
+	private volatile long latestLocalEpoch = 0l;
+	private final AtomicLong lastAdvertisementEpoch = new AtomicLong(0l);
+	private final AtomicLongArray lastPushEpochs = new AtomicLongArray(GpsConstants.MAX_PRN+1);
 	
 	// Constructor
 	public NetworkManager(final String moduleID, final String rcvrID)
@@ -45,11 +59,17 @@ public final class NetworkManager extends RLModule
 		super(moduleID);
 		
 		receiverID = rcvrID;
+		receiverHandle = NetworkPacketHeader.getReceiverHandle(rcvrID);
 		
 		addIncomingMessageType(RLMessageType.BYTE_STREAM);
 		addIncomingMessageType(RLMessageType.PROCESSED_DATA);
 	}
 	
+	public NetworkPacketFilter getPacketFilter() { return packetFilter; }
+	public void setPacketFilter(final NetworkPacketFilter filter) { packetFilter = (filter == null) ? new ReceiverPacketFilter() : filter; }
+	public EphemerisExchange getEphemerisExchange() { return ephemerisExchange; }
+	public void setEphemerisExchange(final EphemerisExchange exchange) { ephemerisExchange = exchange; }
+	
 	@Override
 	protected void incomingMessageHandler(final RLMessage message)
 	{
@@ -57,39 +77,37 @@ public final class NetworkManager extends RLModule
 		{
 			case BYTE_STREAM:
 				{
+					// Get byte stream packet from network and make sure it should be decoded based on its header alone
+					byte[] packet = ((ByteStream)message.data).bytes;
+					if (!NetworkPacketHeader.isValid(packet))
+						return;
+					long rcvrHandle = NetworkPacketHeader.readReceiverHandle(packet), epoch = NetworkPacketHeader.readEpoch(packet);
+					int flags = NetworkPacketHeader.readFlags(packet);
+					if (rcvrHandle == receiverHandle)
+						return;
+					
+					// Ephemerides are the same for every receiver, so ephemeris packets bypass the packet filter (all ephemeris
+					//   throttling is based on the local epoch, so that a peer's clock can never suppress local advertisements)
+					if ((flags & (NetworkPacketHeader.FLAG_EPHEMERIS_ADVERTISEMENT | NetworkPacketHeader.FLAG_EPHEMERIS_DATA)) != 0)
+					{
+						handleEphemerisPacket(packet, latestLocalEpoch, flags);
+						return;
+					}
+					
+					// A receiver which is still missing ephemerides asks for them as soon as it hears from any peer
+					final EphemerisExchange exchange = ephemerisExchange;
+					if ((exchange != null) && (latestLocalEpoch > lastAdvertisementEpoch.get()) && (exchange.getNumEphemerides() < MIN_USABLE_EPHEMERIDES))
+						sendEphemerisAdvertisement(latestLocalEpoch, 1l);
+					if (((flags & NetworkPacketHeader.FLAG_PROCESSED_DATA) == 0) || !packetFilter.acceptPacket(rcvrHandle, epoch, flags, latestLocalEpoch))
+						return;
+					
 					try
 					{
-						// Get byte stream packet from network
-						ByteArrayInputStream byteStreamIn = new ByteArrayInputStream(((ByteStream)message.data).bytes);
+						ByteArrayInputStream byteStreamIn = new ByteArrayInputStream(packet, NetworkPacketHeader.HEADER_LENGTH, packet.length - NetworkPacketHeader.HEADER_LENGTH);
 						DataInputStream dataStreamIn = new DataInputStream(byteStreamIn);
-						String rcvrID = "";
-						
-						// Get receiver name
-						int numChars = dataStreamIn.readInt();
-						for (int i = 0; i < numChars; ++i)
-							rcvrID += dataStreamIn.readChar();
-						if (receiverID.equals(rcvrID))
-							return;
 						
 						// Extract data from packet
-						ProcessedData rawData = new ProcessedData(rcvrID, dataStreamIn.readLong(), new Coordinate());
-						rawData.receiverClockBias = dataStreamIn.readDouble();
-						rawData.receiverClockDrift = dataStreamIn.readDouble();
-						rawData.absoluteLocation.setXYZ(dataStreamIn.readDouble(), dataStreamIn.readDouble(), dataStreamIn.readDouble());
-						
-						int numSatellites = dataStreamIn.readInt();
-						for (int i = 0; i < numSatellites; ++i)
-						{
-							int PRN = dataStreamIn.readInt();
-							SatelliteObservation satDatum = new SatelliteObservation(new EphemerisDatum(), dataStreamIn.readDouble(),
-									dataStreamIn.readDouble(), dataStreamIn.readDouble(), dataStreamIn.readDouble(), dataStreamIn.readBoolean());
-							satDatum.ephemerisDatum.X = dataStreamIn.readDouble();
-							satDatum.ephemerisDatum.Y = dataStreamIn.readDouble();
-							satDatum.ephemerisDatum.Z = dataStreamIn.readDouble();
-							satDatum.ephemerisDatum.elevation = dataStreamIn.readDouble();
-							satDatum.cycleSlips = dataStreamIn.readBoolean();
-							rawData.observations.addData(PRN, satDatum);
-						}
+						ProcessedData rawData = DataCodec.readProcessedData(dataStreamIn, epoch);
 						
 						// Send to next module
 						sendMessageToNextModule(new RLMessage(rawData));
@@ -104,43 +122,120 @@ public final class NetworkManager extends RLModule
 						ProcessedData processedData = (ProcessedData)message.data;
 						ByteArrayOutputStream byteStreamOut = new ByteArrayOutputStream();
 						DataOutputStream dataStreamOut = new DataOutputStream(byteStreamOut);
+						if (processedData.receiveEpoch > latestLocalEpoch)
+							latestLocalEpoch = processedData.receiveEpoch;
 						
 						// Fill up buffer
-						dataStreamOut.writeInt(processedData.ID.length());
-						dataStreamOut.writeChars(processedData.ID);
-						dataStreamOut.writeLong(processedData.receiveEpoch);
-						dataStreamOut.writeDouble(processedData.receiverClockBias);
-						dataStreamOut.writeDouble(processedData.receiverClockDrift);
-						dataStreamOut.writeDouble(processedData.absoluteLocation.X);
-						dataStreamOut.writeDouble(processedData.absoluteLocation.Y);
-						dataStreamOut.writeDouble(processedData.absoluteLocation.Z);
-						
-						dataStreamOut.writeInt(processedData.observations.getValidSatelliteNumbers().size());
-						for (final Entry<Integer, SatelliteObservation> satEntry : processedData.observations.getFullSatelliteCollection())
-						{
-							SatelliteObservation satDatum = satEntry.getValue();
-							dataStreamOut.writeInt(satEntry.getKey());
-							dataStreamOut.writeDouble(satDatum.pseudorange);
-							dataStreamOut.writeDouble(satDatum.carrierRange);
-							dataStreamOut.writeDouble(satDatum.dopplerShift);
-							dataStreamOut.writeDouble(satDatum.signalStrength);
-							dataStreamOut.writeBoolean(satDatum.potentialHalfCycleSlip);
-							dataStreamOut.writeDouble(satDatum.ephemerisDatum.X);
-							dataStreamOut.writeDouble(satDatum.ephemerisDatum.Y);
-							dataStreamOut.writeDouble(satDatum.ephemerisDatum.Z);
-							dataStreamOut.writeDouble(satDatum.ephemerisDatum.elevation);
-							dataStreamOut.writeBoolean(satDatum.cycleSlips);
-						}
+						NetworkPacketHeader.writeHeader(dataStreamOut, receiverHandle, processedData.receiveEpoch, NetworkPacketHeader.FLAG_PROCESSED_DATA);
+						DataCodec.writeProcessedData(dataStreamOut, processedData);
 						dataStreamOut.flush();
 						
 						// Send to next module
 						sendMessageToNextModule(new RLMessage(new ByteStream(byteStreamOut.toByteArray())));
 					}
 					catch (IOException e) { System.err.println("Error writing network packet to output stream. Check packet parameters and try again."); }
+					
+					// Periodically advertise the local ephemeris table
+					sendEphemerisAdvertisement(latestLocalEpoch, EPHEMERIS_ADVERTISEMENT_INTERVAL);
 				}
 				break;
 			default:
 				break;
 		}
 	}
+	
+	private void handleEphemerisPacket(final byte[] packet, long epoch, int flags)
+	{
+		final EphemerisExchange exchange = ephemerisExchange;
+		if (exchange == null)
+			return;
+		
+		try
+		{
+			DataInputStream dataStreamIn = new DataInputStream(new ByteArrayInputStream(packet, NetworkPacketHeader.HEADER_LENGTH, packet.length - NetworkPacketHeader.HEADER_LENGTH));
+			if ((flags & NetworkPacketHeader.FLAG_EPHEMERIS_DATA) != 0)
+			{
+				// Offer every received ephemeris to the local ephemeris table
+				int numEphemerides = dataStreamIn.readUnsignedByte();
+				for (int i = 0; i < numEphemerides; ++i)
+					exchange.offerEphemeris(DataCodec.readEphemeris(dataStreamIn));
+				return;
+			}
+			
+			// Find the time of ephemeris of every satellite advertised by the peer (zero if not advertised)
+			final long[] peerEphemerisTimes = new long[GpsConstants.MAX_PRN+1];
+			int numAdvertised = dataStreamIn.readUnsignedByte();
+			for (int i = 0; i < numAdvertised; ++i)
+			{
+				int PRN = dataStreamIn.readUnsignedByte();
+				dataStreamIn.readUnsignedByte();
+				long toeTime = dataStreamIn.readLong();
+				if (PRN <= GpsConstants.MAX_PRN)
+					peerEphemerisTimes[PRN] = toeTime;
+			}
+			
+			// Push any ephemerides that the peer is missing or holds an older version of (unless recently pushed),
+			//   and ask for any that the peer holds a newer version of
+			final ArrayList<EphemerisDatum> localEphemerides = exchange.getEphemerides(), pushedEphemerides = new ArrayList<EphemerisDatum>();
+			final boolean[] isKnownLocally = new boolean[GpsConstants.MAX_PRN+1];
+			boolean peerHasNewer = false;
+			for (final EphemerisDatum ephDatum : localEphemerides)
+			{
+				isKnownLocally[ephDatum.PRN] = true;
+				long lastPushEpoch = lastPushEpochs.get(ephDatum.PRN);
+				if (peerEphemerisTimes[ephDatum.PRN] > ephDatum.toe.timeMS)
+					peerHasNewer = true;
+				else if ((peerEphemerisTimes[ephDatum.PRN] < ephDatum.toe.timeMS) && ((epoch - lastPushEpoch) >= EPHEMERIS_PUSH_INTERVAL) &&
+						lastPushEpochs.compareAndSet(ephDatum.PRN, lastPushEpoch, epoch))
+					pushedEphemerides.add(ephDatum);
+			}
+			for (int PRN = 1; !peerHasNewer && (PRN <= GpsConstants.MAX_GPS); ++PRN)
+				peerHasNewer = (peerEphemerisTimes[PRN] != 0l) && !isKnownLocally[PRN];
+			
+			if (!pushedEphemerides.isEmpty())
+				sendEphemerides(pushedEphemerides, epoch);
+			if (peerHasNewer)
+				sendEphemerisAdvertisement(epoch, 1l);
+		}
+		catch (IOException e) { System.err.println("Error reading ephemeris packet from input stream. Check packet parameters and try again."); }
+	}
+	
+	// Advertises the local ephemeris table if at least the given number of epochs have passed since the last advertisement
+	private void sendEphemerisAdvertisement(long epoch, long minInterval)
+	{
+		final EphemerisExchange exchange = ephemerisExchange;
+		long lastEpoch = lastAdvertisementEpoch.get();
+		if ((exchange == null) || ((epoch - lastEpoch) < minInterval) || !lastAdvertisementEpoch.compareAndSet(lastEpoch, epoch))
+			return;
+		
+		try
+		{
+			final ArrayList<EphemerisDatum> ephemerides = exchange.getEphemerides();
+			ByteArrayOutputStream byteStreamOut = new ByteArrayOutputStream();
+			DataOutputStream dataStreamOut = new DataOutputStream(byteStreamOut);
+			NetworkPacketHeader.writeHeader(dataStreamOut, receiverHandle, epoch, NetworkPacketHeader.FLAG_EPHEMERIS_ADVERTISEMENT);
+			dataStreamOut.writeByte(ephemerides.size());
+			for (final EphemerisDatum ephDatum : ephemerides)
+			{
+				dataStreamOut.writeByte(ephDatum.PRN);
+				dataStreamOut.writeByte(ephDatum.iode);
+				dataStreamOut.writeLong(ephDatum.toe.timeMS);
+			}
+			dataStreamOut.flush();
+			sendMessageToNextModule(new RLMessage(new ByteStream(byteStreamOut.toByteArray())));
+		}
+		catch (IOException e) { System.err.println("Error writing network packet to output stream. Check packet parameters and try again."); }
+	}
+	
+	private void sendEphemerides(final ArrayList<EphemerisDatum> ephemerides, long epoch) throws IOException
+	{
+		ByteArrayOutputStream byteStreamOut = new ByteArrayOutputStream();
+		DataOutputStream dataStreamOut = new DataOutputStream(byteStreamOut);
+		NetworkPacketHeader.writeHeader(dataStreamOut, receiverHandle, epoch, NetworkPacketHeader.FLAG_EPHEMERIS_DATA);
+		dataStreamOut.writeByte(ephemerides.size());
+		for (final EphemerisDatum ephDatum : ephemerides)
+			DataCodec.writeEphemeris(dataStreamOut, ephDatum);
+		dataStreamOut.flush();
+		sendMessageToNextModule(new RLMessage(new ByteStream(byteStreamOut.toByteArray())));
+	}
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.networkmanager;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Fixed-layout header preceding every network packet so that packets can be accepted or rejected
+//   before their bodies are decoded:
+//     [0-7]   Receiver handle (64-bit hash of the sending receiver's ID)
+//     [8-15]  GPS epoch of the packet contents
+//     [16]    Packet flags
+public final class NetworkPacketHeader
+{
+	public static final int HEADER_LENGTH = 17;
+	public static final int FLAG_PROCESSED_DATA = 0x01;
+	public static final int FLAG_EPHEMERIS_ADVERTISEMENT = 0x02;		// Body: count, then (PRN, IODE, time of ephemeris) per satellite
+	public static final int FLAG_EPHEMERIS_DATA = 0x04;					// Body: count, then full broadcast ephemerides
+	
+	public static long getReceiverHandle(final String receiverID)
+	{
+		// 64-bit FNV-1a hash of the receiver ID
+		long hash = 0xcbf29ce484222325l;
+		for (int i = 0; i < receiverID.length(); ++i)
+		{
+			hash ^= receiverID.charAt(i);
+			hash *= 0x100000001b3l;
+		}
+		return hash;
+	}
+	
+	public static boolean isValid(final byte[] packet) { return (packet.length >= HEADER_LENGTH); }
+	public static long readReceiverHandle(final byte[] packet) { return readLong(packet, 0); }
+	public static long readEpoch(final byte[] packet) { return readLong(packet, 8); }
+	public static int readFlags(final byte[] packet) { return (packet[16] & 0x000000FF); }
+	
+	public static void writeHeader(final DataOutputStream dataStreamOut, long receiverHandle, long epoch, int flags) throws IOException
+	{
+		dataStreamOut.writeLong(receiverHandle);
+		dataStreamOut.writeLong(epoch);
+		dataStreamOut.writeByte(flags);
+	}
+	
+	private static long readLong(final byte[] packet, int offset)
+	{
+		long value = 0l;
+		for (int i = offset; i < (offset + 8); ++i)
+			value = (value << 8) | (packet[i] & 0x00000000000000FFl);
+		return value;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.networkmanager;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.vu.isis.regtrack.common.GpsConstants;
+
+// Default packet filter which rejects packets from epochs too old to be paired with any local data,
+//   as well as packets from receivers that have not been subscribed to (if any subscriptions exist)
+public final class ReceiverPacketFilter implements NetworkPacketFilter
+{
+	// Member variables
+	private final Set<Long> subscribedReceivers = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private volatile long maxEpochAge = GpsConstants.LONGEST_TOLERABLE_TRACKING_OUTAGE;
+	
+	// Subscriptions are empty by default, meaning that packets from all receivers are accepted
+	public void subscribeToReceiver(final String receiverID) { subscribedReceivers.add(NetworkPacketHeader.getReceiverHandle(receiverID)); }
+	public void unsubscribeFromReceiver(final String receiverID) { subscribedReceivers.remove(NetworkPacketHeader.getReceiverHandle(receiverID)); }
+	public void clearSubscriptions() { subscribedReceivers.clear(); }
+	public void setMaxEpochAge(long maxAge) { maxEpochAge = maxAge; }
+	
+	@Override
+	public boolean acceptPacket(long receiverHandle, long epoch, int flags, long latestLocalEpoch)
+	{
+		// Reject packets too old to correspond to any stored local data
+		if ((latestLocalEpoch != 0l) && ((latestLocalEpoch - epoch) > maxEpochAge))
+			return false;
+		
+		return subscribedReceivers.isEmpty() || subscribedReceivers.contains(receiverHandle);
+	}
+}
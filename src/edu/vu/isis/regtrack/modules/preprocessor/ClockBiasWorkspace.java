@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.preprocessor;
+
+import edu.vu.isis.regtrack.common.GpsConstants;
+import edu.vu.isis.regtrack.common.SatelliteMask;
+import edu.vu.isis.regtrack.common.WeightedLeastSquares;
+
+// Reusable scratch storage for PreProcessingAlgorithms.estimateClockBias, so that repeated clock bias solutions
+//   for a single receiver do not allocate any objects (not thread-safe; one workspace per preprocessing thread)
+final class ClockBiasWorkspace
+{
+	// Per-satellite terms, stored contiguously in solution order
+	public final int[] satellitePRNs = new int[GpsConstants.MAX_PRN+1];
+	public final double[] satelliteX = new double[GpsConstants.MAX_PRN+1], satelliteY = new double[GpsConstants.MAX_PRN+1], satelliteZ = new double[GpsConstants.MAX_PRN+1];
+	public final double[] negatedPseudorange = new double[GpsConstants.MAX_PRN+1], estimatedRange = new double[GpsConstants.MAX_PRN+1], rangeResidual = new double[GpsConstants.MAX_PRN+1];
+	public final double[] unitX = new double[GpsConstants.MAX_PRN+1], unitY = new double[GpsConstants.MAX_PRN+1], unitZ = new double[GpsConstants.MAX_PRN+1];
+	
+	// Position and clock bias solver, and satellites excluded from the most recent solution
+	public final WeightedLeastSquares leastSquares = new WeightedLeastSquares();
+	public final SatelliteMask ignoredSatellites = new SatelliteMask();
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.preprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.vu.isis.regtrack.common.AtomicFileWriter;
+import edu.vu.isis.regtrack.common.DataCodec;
+import edu.vu.isis.regtrack.common.EphemerisDatum;
+import edu.vu.isis.regtrack.common.GpsConstants;
+
+// Compact on-disk copy of the current broadcast ephemeris of each GPS satellite, rewritten in the background whenever
+//   an ephemeris changes and reloaded at startup, so that observations can be used from the first epoch after a restart
+//   instead of waiting 18-30 seconds for subframes 1-3 of every satellite (SBAS ephemerides are rebroadcast every few
+//   minutes and carry only a time of day, so they are not stored)
+public final class EphemerisStore
+{
+	private static final int STORE_VERSION = 1;
+	
+	// Curve fit intervals indicated by the fit interval flag of subframe 2 (an ephemeris is valid for half of its
+	//   fit interval on either side of its time of ephemeris)
+	private static final long SHORT_FIT_INTERVAL = 4l * 3600l * 1000l;
+	private static final long LONG_FIT_INTERVAL = 6l * 3600l * 1000l;
+	
+	// Member variables
+	private final File storeFile;
+	private final AtomicReference<ArrayList<EphemerisDatum>> pendingEphemerides = new AtomicReference<ArrayList<EphemerisDatum>>(null);
+	private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread writeThread = new Thread(runnable, "EphemerisStore");
+			writeThread.setDaemon(true);
+			return writeThread;
+		}
+	});
+	
+	// Constructor
+	public EphemerisStore(final File file) { storeFile = file; }
+	
+	public File getFile() { return storeFile; }
+	public void close() { writeExecutor.shutdown(); }
+	
+	// Returns true if the given GPS time (in milliseconds, as used by GpsTime) falls within the ephemeris' fit interval
+	public static boolean isWithinFitInterval(final EphemerisDatum ephDatum, long gpsTimeMS)
+	{
+		long fitInterval = (ephDatum.fitInt == 0.0) ? SHORT_FIT_INTERVAL : LONG_FIT_INTERVAL;
+		return !ephDatum.isSBAS && ephDatum.isValid && (Math.abs(gpsTimeMS - ephDatum.toe.timeMS) <= (fitInterval / 2l));
+	}
+	
+	// Loads all stored ephemerides which are still within their fit intervals at the given GPS time
+	public ArrayList<EphemerisDatum> load(long gpsTimeMS)
+	{
+		ArrayList<EphemerisDatum> ephemerides = new ArrayList<EphemerisDatum>();
+		if (!storeFile.isFile())
+			return ephemerides;
+		
+		DataInputStream dataStreamIn = null;
+		try
+		{
+			dataStreamIn = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+			if (dataStreamIn.readInt() != STORE_VERSION)
+				return ephemerides;
+			
+			int numEphemerides = dataStreamIn.readInt();
+			for (int i = 0; i < numEphemerides; ++i)
+			{
+				EphemerisDatum ephDatum = DataCodec.readEphemeris(dataStreamIn);
+				if ((ephDatum.PRN > 0) && (ephDatum.PRN <= GpsConstants.MAX_GPS) && isWithinFitInterval(ephDatum, gpsTimeMS))
+					ephemerides.add(ephDatum);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error reading ephemeris store " + storeFile.getPath() + ": " + e.getMessage());
+			ephemerides.clear();
+		}
+		finally
+		{
+			if (dataStreamIn != null)
+				try { dataStreamIn.close(); } catch (IOException e) {}
+		}
+		
+		return ephemerides;
+	}
+	
+	// Queues the given ephemerides to be written, replacing any set that has not yet been written
+	public void saveInBackground(final ArrayList<EphemerisDatum> ephemerides)
+	{
+		if (pendingEphemerides.getAndSet(ephemerides) != null)
+			return;
+		
+		writeExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run() { save(pendingEphemerides.getAndSet(null)); }
+		});
+	}
+	
+	public boolean save(final ArrayList<EphemerisDatum> ephemerides)
+	{
+		return AtomicFileWriter.write(storeFile, "ephemeris store", new AtomicFileWriter.Contents()
+		{
+			@Override
+			public void write(DataOutputStream dataStreamOut) throws IOException
+			{
+				dataStreamOut.writeInt(STORE_VERSION);
+				dataStreamOut.writeInt(ephemerides.size());
+				for (final EphemerisDatum ephDatum : ephemerides)
+					DataCodec.writeEphemeris(dataStreamOut, ephDatum);
+			}
+		});
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.preprocessor;
+
+import edu.vu.isis.regtrack.common.EphemerisDatum;
+import edu.vu.isis.regtrack.common.GpsConstants;
+
+// Newton solver for Kepler's equation (M = E - e*sin(E)) which remembers the most recent solution for each satellite,
+//   so that repeated solutions at the same mean anomaly are reused outright and solutions at a nearby time are
+//   warm-started from a first-order prediction (typically converging in a single iteration)
+final class KeplerSolver
+{
+	private static final double TOLERANCE = 1E-15;
+	private static final int MAX_ITERATIONS = 8;
+	
+	// Member variables (indexed by PRN)
+	private final boolean[] hasSolution = new boolean[GpsConstants.MAX_PRN+1];
+	private final int[] iodes = new int[GpsConstants.MAX_PRN+1];
+	private final long[] toeTimes = new long[GpsConstants.MAX_PRN+1];
+	private final double[] meanAnomalies = new double[GpsConstants.MAX_PRN+1], eccentricAnomalies = new double[GpsConstants.MAX_PRN+1];
+	
+	public static double meanAnomaly(final EphemerisDatum ephDatum, double tk)
+	{
+		return ephDatum.M0 + (Math.sqrt(GpsConstants.EARTH_GRAVITATION / (ephDatum.A * ephDatum.A * ephDatum.A)) + ephDatum.deltaN) * tk;
+	}
+	
+	// Stateless solution starting from the given estimate of the eccentric anomaly
+	public static double solve(double M, double e, double initialE)
+	{
+		double E = initialE, delta;
+		int iter = 0;
+		do
+		{
+			delta = (E - e*Math.sin(E) - M) / (1.0 - e*Math.cos(E));
+			E -= delta;
+		} while ((Math.abs(delta) > (TOLERANCE * Math.max(1.0, Math.abs(E)))) && (++iter < MAX_ITERATIONS));
+		return E;
+	}
+	
+	// Solves for the eccentric anomaly of the given satellite at time tk (seconds from the time of ephemeris)
+	public double solve(final EphemerisDatum ephDatum, double tk)
+	{
+		double M = meanAnomaly(ephDatum, tk), E;
+		int PRN = ephDatum.PRN;
+		if ((PRN < 0) || (PRN > GpsConstants.MAX_PRN))
+			return solve(M, ephDatum.e, M);
+		
+		// Reuse or warm-start from the previous solution if it was computed from the same ephemeris
+		if (hasSolution[PRN] && (iodes[PRN] == ephDatum.iode) && (toeTimes[PRN] == ephDatum.toe.timeMS))
+		{
+			if (M == meanAnomalies[PRN])
+				return eccentricAnomalies[PRN];
+			E = eccentricAnomalies[PRN];
+			E = solve(M, ephDatum.e, E + ((M - meanAnomalies[PRN]) / (1.0 - ephDatum.e*Math.cos(E))));
+		}
+		else
+			E = solve(M, ephDatum.e, M);
+		
+		hasSolution[PRN] = true;
+		iodes[PRN] = ephDatum.iode;
+		toeTimes[PRN] = ephDatum.toe.timeMS;
+		meanAnomalies[PRN] = M;
+		eccentricAnomalies[PRN] = E;
+		return E;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.preprocessor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.vu.isis.regtrack.common.EphemerisDatum;
+import edu.vu.isis.regtrack.common.GpsConstants;
+import edu.vu.isis.regtrack.common.GpsTime;
+
+// Thread-safe cache of interpolated orbit arcs keyed by (PRN, IODE, arc of time), refitted whenever a satellite's
+//   ephemeris changes or its transmit time leaves every cached arc (SBAS satellites are always calculated directly)
+//     A single shared instance is used by every PreProcessor in the process, so that receivers tracking the same
+//     satellites at the same epoch fit each arc only once
+final class OrbitArcCache
+{
+	// Number of arcs retained per satellite, allowing consecutive arcs and a changeover between ephemerides
+	//   to coexist while receivers straddle an arc boundary or an ephemeris update
+	private static final int ARCS_PER_SATELLITE = 4;
+	private static final OrbitArcCache sharedCache = new OrbitArcCache();
+	
+	// Member variables
+	private final AtomicReferenceArray<SatelliteOrbitArc> arcs = new AtomicReferenceArray<SatelliteOrbitArc>((GpsConstants.MAX_PRN+1) * ARCS_PER_SATELLITE);
+	private final AtomicLong numLookups = new AtomicLong(0l), numFits = new AtomicLong(0l);
+	
+	public static OrbitArcCache getSharedCache() { return sharedCache; }
+	public long getNumLookups() { return numLookups.get(); }
+	public long getNumFits() { return numFits.get(); }
+	
+	public void calculateSatellitePosition(final GpsTime receiveTime, final GpsTime transmitTime, final EphemerisDatum ephDatum)
+	{
+		if (ephDatum.isSBAS || (ephDatum.PRN < 0) || (ephDatum.PRN > GpsConstants.MAX_PRN))
+		{
+			PreProcessingAlgorithms.calculateSatellitePosition(receiveTime, transmitTime, ephDatum);
+			return;
+		}
+		
+		// Search this satellite's arcs starting from the preferred slot, which differs between consecutive arcs
+		//   and between consecutive IODEs
+		double tk = GpsTime.GpsTimeSub(transmitTime, ephDatum.toe);
+		int firstSlot = ephDatum.PRN * ARCS_PER_SATELLITE, preferredSlot = (int)((SatelliteOrbitArc.arcIndexOf(tk) + ephDatum.iode) & (ARCS_PER_SATELLITE - 1));
+		SatelliteOrbitArc arc = null;
+		numLookups.incrementAndGet();
+		for (int i = 0; i < ARCS_PER_SATELLITE; ++i)
+		{
+			SatelliteOrbitArc candidate = arcs.get(firstSlot + ((preferredSlot + i) & (ARCS_PER_SATELLITE - 1)));
+			if ((candidate != null) && candidate.covers(ephDatum, tk))
+			{
+				arc = candidate;
+				break;
+			}
+		}
+		
+		// Arcs are immutable once fitted, so concurrent callers may race to fit the same arc without harm
+		if (arc == null)
+		{
+			arc = new SatelliteOrbitArc(ephDatum, tk);
+			arcs.set(firstSlot + preferredSlot, arc);
+			numFits.incrementAndGet();
+		}
+		
+		arc.evaluate(tk, GpsTime.GpsTimeSub(receiveTime, transmitTime), ephDatum);
+		ephDatum.satPosVariance = ephDatum.svAccur * ephDatum.svAccur;
+	}
+	
+	public void clear()
+	{
+		for (int i = 0; i < arcs.length(); ++i)
+			arcs.set(i, null);
+	}
+}
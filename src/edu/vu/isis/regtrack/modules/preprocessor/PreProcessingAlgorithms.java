@@ -27,45 +27,25 @@ import edu.vu.isis.regtrack.common.GpsConstants;
 import edu.vu.isis.regtrack.common.GpsTime;
 import edu.vu.isis.regtrack.common.Matrix;
 import edu.vu.isis.regtrack.common.ProcessedData;
+import edu.vu.isis.regtrack.common.SatelliteGeometry;
+import edu.vu.isis.regtrack.common.SatelliteMask;
 import edu.vu.isis.regtrack.common.SatelliteObservations.SatelliteObservation;
+import edu.vu.isis.regtrack.common.WeightedLeastSquares;
 
 public final class PreProcessingAlgorithms
 {
 	public static void calculateSatellitePosition(final GpsTime receiveTime, final GpsTime transmitTime, final EphemerisDatum ephDatum)
 	{
-		double tk, u, r, i, O, cosE, sin2u, cos2u, M, E, sinE, EOld;
-		double x, y, sinO, cosO, cosi, travelTime = GpsTime.GpsTimeSub(receiveTime, transmitTime);
-		int iter;
+		double travelTime = GpsTime.GpsTimeSub(receiveTime, transmitTime);
 		
 		// Standard algorithm for finding satellite position
 		if (!ephDatum.isSBAS)		// Standard GPS satellite
 		{
-			tk = GpsTime.GpsTimeSub(transmitTime, ephDatum.toe);
-			M = ephDatum.M0 + (Math.sqrt(GpsConstants.EARTH_GRAVITATION / (ephDatum.A * ephDatum.A * ephDatum.A)) + ephDatum.deltaN) * tk;
-			for (E = M, sinE = EOld = 0.0, iter = 0; (Math.abs(E - EOld) > 1E-15) && (iter < 11); ++iter)
-			{
-				EOld = E;
-				sinE = Math.sin(EOld);
-				E = M + ephDatum.e * sinE;
-			}
-			cosE = Math.cos(E);
-			u = Math.atan2(Math.sqrt(1.0 - ephDatum.e * ephDatum.e) * Math.sin(E), cosE - ephDatum.e) + ephDatum.omega;
-			sin2u = Math.sin(2.0*u);
-			cos2u = Math.cos(2.0*u);
-			u += ephDatum.cus * sin2u + ephDatum.cuc * cos2u;
-			r = (ephDatum.A * (1.0 - ephDatum.e*cosE)) + ephDatum.crs * sin2u + ephDatum.crc * cos2u;
-			i = (ephDatum.i0 + ephDatum.iDot*tk) + ephDatum.cis * sin2u + ephDatum.cic * cos2u;
-			O = ephDatum.omega0 + (ephDatum.omegaDot - GpsConstants.EARTH_ANGULAR_VELOCITY)*tk - GpsConstants.EARTH_ANGULAR_VELOCITY*(ephDatum.toes*0.001 + travelTime);
-			
-			x = r*Math.cos(u);
-			y = r*Math.sin(u);
-			sinO = Math.sin(O);
-			cosO = Math.cos(O);
-			cosi = Math.cos(i);
-			
-			ephDatum.X = (x*cosO - y*cosi*sinO);
-			ephDatum.Y = (x*sinO + y*cosi*cosO);
-			ephDatum.Z = (y*Math.sin(i));
+			double[] position = new double[3];
+			calculateOrbitPosition(ephDatum, GpsTime.GpsTimeSub(transmitTime, ephDatum.toe), travelTime, position);
+			ephDatum.X = position[0];
+			ephDatum.Y = position[1];
+			ephDatum.Z = position[2];
 			ephDatum.satPosVariance = ephDatum.svAccur * ephDatum.svAccur;
 		}
 		else		// SBAS satellite
@@ -90,6 +70,35 @@ public final class PreProcessingAlgorithms
 		}
 	}
 	
+	// Evaluates the broadcast orbit of a GPS satellite at time tk (seconds from the time of ephemeris), rotated into
+	//   the Earth-fixed frame at the time of reception (travelTime seconds later)
+	public static void calculateOrbitPosition(final EphemerisDatum ephDatum, double tk, double travelTime, final double[] position)
+	{
+		double u, r, i, O, cosE, sin2u, cos2u, M, E;
+		double x, y, sinO, cosO, cosi;
+		
+		M = KeplerSolver.meanAnomaly(ephDatum, tk);
+		E = KeplerSolver.solve(M, ephDatum.e, M);
+		cosE = Math.cos(E);
+		u = Math.atan2(Math.sqrt(1.0 - ephDatum.e * ephDatum.e) * Math.sin(E), cosE - ephDatum.e) + ephDatum.omega;
+		sin2u = Math.sin(2.0*u);
+		cos2u = Math.cos(2.0*u);
+		u += ephDatum.cus * sin2u + ephDatum.cuc * cos2u;
+		r = (ephDatum.A * (1.0 - ephDatum.e*cosE)) + ephDatum.crs * sin2u + ephDatum.crc * cos2u;
+		i = (ephDatum.i0 + ephDatum.iDot*tk) + ephDatum.cis * sin2u + ephDatum.cic * cos2u;
+		O = ephDatum.omega0 + (ephDatum.omegaDot - GpsConstants.EARTH_ANGULAR_VELOCITY)*tk - GpsConstants.EARTH_ANGULAR_VELOCITY*(ephDatum.toes*0.001 + travelTime);
+		
+		x = r*Math.cos(u);
+		y = r*Math.sin(u);
+		sinO = Math.sin(O);
+		cosO = Math.cos(O);
+		cosi = Math.cos(i);
+		
+		position[0] = (x*cosO - y*cosi*sinO);
+		position[1] = (x*sinO + y*cosi*cosO);
+		position[2] = (y*Math.sin(i));
+	}
+	
 	public static void calculateElevationAndAzimuth(final Coordinate absolutePosition, final EphemerisDatum ephDatum)
 	{
 		double p = Math.sqrt(absolutePosition.X*absolutePosition.X + absolutePosition.Y*absolutePosition.Y);
@@ -125,8 +134,13 @@ public final class PreProcessingAlgorithms
 	
 	public static void correctDataForSatelliteClockBiases(final ProcessedData rawData, final GpsTime rcvTime, final GpsTime[] sendTimes)
 	{
-		double tk, tc, M, EOld, E, sinE, dtr, satClockDrift;
-		int iter;
+		correctDataForSatelliteClockBiases(rawData, rcvTime, sendTimes, null);
+	}
+	
+	// Eccentric anomalies are solved by the given per-satellite solver, or from scratch if there is none
+	static void correctDataForSatelliteClockBiases(final ProcessedData rawData, final GpsTime rcvTime, final GpsTime[] sendTimes, final KeplerSolver keplerSolver)
+	{
+		double tk, tc, M, E, dtr, satClockDrift;
 		
 		for (final Entry<Integer, SatelliteObservation> satEntry : rawData.observations.getFullSatelliteCollection())
 		{
@@ -138,12 +152,12 @@ public final class PreProcessingAlgorithms
 				GpsTime estSendTime = new GpsTime((rcvTime.timeMS + rcvTime.fracMS) - (satDatum.pseudorange * 1000.0 / GpsConstants.SPEED_OF_LIGHT));
 				tk = GpsTime.GpsTimeSub(estSendTime, satDatum.ephemerisDatum.toe);
 				tc = GpsTime.GpsTimeSub(estSendTime, satDatum.ephemerisDatum.toc);
-				M = satDatum.ephemerisDatum.M0 + (Math.sqrt(GpsConstants.EARTH_GRAVITATION / (satDatum.ephemerisDatum.A * satDatum.ephemerisDatum.A * satDatum.ephemerisDatum.A)) + satDatum.ephemerisDatum.deltaN) * tk;
-				for (E = M, sinE = EOld = 0.0, iter = 0; (Math.abs(E - EOld) > 1E-15) && (iter < 11); ++iter)
+				if (keplerSolver != null)
+					E = keplerSolver.solve(satDatum.ephemerisDatum, tk);
+				else
 				{
-					EOld = E;
-					sinE = Math.sin(EOld);
-					E = M + satDatum.ephemerisDatum.e * sinE;
+					M = KeplerSolver.meanAnomaly(satDatum.ephemerisDatum, tk);
+					E = KeplerSolver.solve(M, satDatum.ephemerisDatum.e, M);
 				}
 				dtr = GpsConstants.RELATIVISTIC_ERROR * satDatum.ephemerisDatum.e * satDatum.ephemerisDatum.rootA * Math.sin(E);
 				satDatum.ephemerisDatum.satClockBias = satDatum.ephemerisDatum.af0 + (tc*(satDatum.ephemerisDatum.af1 + tc*satDatum.ephemerisDatum.af2)) + dtr - satDatum.ephemerisDatum.tgd;
@@ -188,6 +202,12 @@ public final class PreProcessingAlgorithms
 	}
 	
 	public static void extrapolateDataToNearestEpoch(final GpsTime actualReceiveTime, final GpsTime[] sendTimes, final ProcessedData data)
+	{
+		extrapolateDataToNearestEpoch(actualReceiveTime, sendTimes, data, null);
+	}
+	
+	// Satellite positions are interpolated from the given orbit arcs, or calculated directly if there are none
+	static void extrapolateDataToNearestEpoch(final GpsTime actualReceiveTime, final GpsTime[] sendTimes, final ProcessedData data, final OrbitArcCache orbitArcs)
 	{
 		double deltaRange, deltaRangePerSecond;
 		
@@ -212,7 +232,10 @@ public final class PreProcessingAlgorithms
 			sendTimes[satDatum.ephemerisDatum.PRN] = new GpsTime(extrapolatedReceiveTime.timeMS + extrapolatedReceiveTime.fracMS - (satDatum.pseudorange * 1000.0 / GpsConstants.SPEED_OF_LIGHT));
 				
 			// Calculate final satellite positions
-			calculateSatellitePosition(actualReceiveTime, sendTimes[satDatum.ephemerisDatum.PRN], satDatum.ephemerisDatum);
+			if (orbitArcs != null)
+				orbitArcs.calculateSatellitePosition(actualReceiveTime, sendTimes[satDatum.ephemerisDatum.PRN], satDatum.ephemerisDatum);
+			else
+				calculateSatellitePosition(actualReceiveTime, sendTimes[satDatum.ephemerisDatum.PRN], satDatum.ephemerisDatum);
 		}
 	}
 	
@@ -247,78 +270,85 @@ public final class PreProcessingAlgorithms
 	
 	public static boolean estimateClockBias(final ProcessedData rawData, final ArrayList<Integer> ignoredSatellites, final Coordinate absoluteLocation)
 	{
-		Coordinate absolutePosition = null;
-		double estimatedRange, clockBias = 0.0;
+		ClockBiasWorkspace workspace = new ClockBiasWorkspace();
+		for (final Integer PRN : ignoredSatellites)
+			workspace.ignoredSatellites.add(PRN);
+		boolean success = estimateClockBias(rawData, absoluteLocation, workspace);
+		for (final Integer PRN : rawData.observations.getValidSatelliteNumbers())
+			if (workspace.ignoredSatellites.contains(PRN) && !ignoredSatellites.contains(PRN))
+				ignoredSatellites.add(PRN);
+		return success;
+	}
+	
+	// Satellites found to be erroneous are added to workspace.ignoredSatellites (no objects are allocated)
+	static boolean estimateClockBias(final ProcessedData rawData, final Coordinate absoluteLocation, final ClockBiasWorkspace workspace)
+	{
+		final SatelliteMask ignoredSatellites = workspace.ignoredSatellites;
+		final WeightedLeastSquares leastSquares = workspace.leastSquares;
+		double positionX, positionY, positionZ, clockBias = 0.0, stepLength;
 		boolean ignoreSatellites = true;
 		
 		while (ignoreSatellites)
 		{
-			// Count number of valid observations
+			// Gather the positions and negated pseudoranges of all usable satellites into contiguous arrays
 			ignoreSatellites = false;
-			int numValid = rawData.observations.getValidSatelliteNumbers().size() - ignoredSatellites.size(), iterations = 0;
+			int numValid = 0, iterations = 0;
+			for (SatelliteObservation satDatum : rawData.observations.getSatelliteObservations())
+			{
+				// Ignore erroneous satellites
+				if (ignoredSatellites.contains(satDatum.ephemerisDatum.PRN))
+					continue;
+				
+				workspace.satellitePRNs[numValid] = satDatum.ephemerisDatum.PRN;
+				workspace.satelliteX[numValid] = satDatum.ephemerisDatum.X;
+				workspace.satelliteY[numValid] = satDatum.ephemerisDatum.Y;
+				workspace.satelliteZ[numValid] = satDatum.ephemerisDatum.Z;
+				workspace.negatedPseudorange[numValid++] = -satDatum.pseudorange;
+			}
 			if (numValid < 4)
 				return false;
 			
-			absolutePosition = new Coordinate(absoluteLocation);
-			Matrix residuals = new Matrix(numValid, 1), cosCoeffs = new Matrix(numValid, 4), cosCoeffsTrans = new Matrix(4, numValid);
-			Matrix intermediateMatrix1, intermediateMatrix2, deltaPos = new Matrix(4, 1);
+			positionX = absoluteLocation.X;
+			positionY = absoluteLocation.Y;
+			positionZ = absoluteLocation.Z;
 			clockBias = rawData.receiverClockBias * GpsConstants.SPEED_OF_LIGHT;
-					
+			
 			do
 			{
-				int index = 0;
-				for (SatelliteObservation satDatum : rawData.observations.getSatelliteObservations())
-				{
-					// Ignore erroneous satellites
-					if (ignoredSatellites.contains(satDatum.ephemerisDatum.PRN))
-						continue;
-					
-					// Calculate direction cosines of unit vector from receiver to satellite
-					estimatedRange = Math.sqrt((satDatum.ephemerisDatum.X - absolutePosition.X)*(satDatum.ephemerisDatum.X - absolutePosition.X) +
-									  (satDatum.ephemerisDatum.Y - absolutePosition.Y)*(satDatum.ephemerisDatum.Y - absolutePosition.Y) + 
-									  (satDatum.ephemerisDatum.Z - absolutePosition.Z)*(satDatum.ephemerisDatum.Z - absolutePosition.Z));
-					cosCoeffs.setValueAt(index, 0, (satDatum.ephemerisDatum.X - absolutePosition.X) / estimatedRange);
-					cosCoeffs.setValueAt(index, 1, (satDatum.ephemerisDatum.Y - absolutePosition.Y) / estimatedRange);
-					cosCoeffs.setValueAt(index, 2, (satDatum.ephemerisDatum.Z - absolutePosition.Z) / estimatedRange);
-					cosCoeffs.setValueAt(index, 3, -1.0);
-				
-					// Calculate difference between measured and estimated pseudorange
-					residuals.setValueAt(index, 0, estimatedRange + clockBias - satDatum.pseudorange);
-					++index;
-				}
+				// Calculate direction cosines of unit vectors from receiver to all satellites and the differences between
+				//   measured and estimated pseudoranges
+				SatelliteGeometry.computeLineOfSight(workspace.satelliteX, workspace.satelliteY, workspace.satelliteZ, numValid, positionX, positionY, positionZ,
+						workspace.estimatedRange, workspace.unitX, workspace.unitY, workspace.unitZ);
+				SatelliteGeometry.computeResiduals(workspace.estimatedRange, workspace.negatedPseudorange, clockBias, numValid, workspace.rangeResidual);
 				
-				// Solve for user position error using weighted least squares estimation
+				// Solve for user position error using least squares estimation
 				//   (normal equation: deltaX = (H^T*H)^-1*H^T*deltaPR)
-				cosCoeffs.matrixTranspose(cosCoeffsTrans);
-				intermediateMatrix1 = cosCoeffsTrans.matrixMultiply(cosCoeffs);
-				intermediateMatrix1.matrixInvertInPlace();
-				intermediateMatrix2 = intermediateMatrix1.matrixMultiply(cosCoeffsTrans);
-				intermediateMatrix2.matrixMultiply(deltaPos, residuals);
+				leastSquares.reset(4);
+				for (int i = 0; i < numValid; ++i)
+					leastSquares.addObservation(workspace.unitX[i], workspace.unitY[i], workspace.unitZ[i], -1.0, workspace.rangeResidual[i], 1.0);
+				if (!leastSquares.solve())
+					return false;
 				
 				// Use position errors to estimate receiver position
-				absolutePosition.X += deltaPos.valueAt(0);
-				absolutePosition.Y += deltaPos.valueAt(1);
-				absolutePosition.Z += deltaPos.valueAt(2);
-				clockBias += deltaPos.valueAt(3);
+				positionX += leastSquares.getSolution(0);
+				positionY += leastSquares.getSolution(1);
+				positionZ += leastSquares.getSolution(2);
+				clockBias += leastSquares.getSolution(3);
+				stepLength = Math.sqrt((leastSquares.getSolution(0)*leastSquares.getSolution(0)) + (leastSquares.getSolution(1)*leastSquares.getSolution(1)) +
+						(leastSquares.getSolution(2)*leastSquares.getSolution(2)));
 				
 				// Make sure there is no obvious error based on a residual outlier
 				if (iterations == 0)
 				{
-					index = 0;
-					for (SatelliteObservation satDatum : rawData.observations.getSatelliteObservations())
-					{
-						if (ignoredSatellites.contains(satDatum.ephemerisDatum.PRN))
-							continue;
-						
-						if (Math.abs(residuals.valueAt(index++, 0)) > GpsConstants.MAX_CLOCK_BIAS_ESTIMATE_RESIDUAL)
+					for (int i = 0; i < numValid; ++i)
+						if (Math.abs(workspace.rangeResidual[i]) > GpsConstants.MAX_CLOCK_BIAS_ESTIMATE_RESIDUAL)
 						{
-							ignoredSatellites.add(satDatum.ephemerisDatum.PRN);
+							ignoredSatellites.add(workspace.satellitePRNs[i]);
 							ignoreSatellites = true;
 							iterations = 10;
 						}
-					}
 				}
-			} while ((Math.sqrt((deltaPos.valueAt(0)*deltaPos.valueAt(0)) + (deltaPos.valueAt(1)*deltaPos.valueAt(1)) + (deltaPos.valueAt(2)*deltaPos.valueAt(2))) > 1E-5) && (iterations++ != 10));
+			} while ((stepLength > 1E-5) && (iterations++ != 10));
 		}
 		
 		if (Math.abs(clockBias - rawData.receiverClockBias*GpsConstants.SPEED_OF_LIGHT) < GpsConstants.MAX_CLOCK_BIAS_ESTIMATE_RESIDUAL)
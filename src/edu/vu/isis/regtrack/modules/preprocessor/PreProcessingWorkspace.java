@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.preprocessor;
+
+import edu.vu.isis.regtrack.common.TopocentricFrame;
+
+// Per-epoch scratch state used by the parallel stage of a PreProcessor, so that several epochs can be preprocessed
+//   concurrently (each epoch in flight holds exclusive use of one workspace)
+final class PreProcessingWorkspace
+{
+	public final KeplerSolver keplerSolver = new KeplerSolver();
+	public final ClockBiasWorkspace clockBiasWorkspace = new ClockBiasWorkspace();
+	public final TopocentricFrame localFrame = new TopocentricFrame();
+}
@@ -18,13 +18,20 @@
 
 package edu.vu.isis.regtrack.modules.preprocessor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import edu.vu.isis.regtrack.common.Coordinate;
+import edu.vu.isis.regtrack.common.DataCodec;
 import edu.vu.isis.regtrack.common.DecodedData;
 import edu.vu.isis.regtrack.common.EphemerisDatum;
 import edu.vu.isis.regtrack.common.GpsConstants;
@@ -41,14 +48,46 @@ import edu.vu.isis.messaging.RLModule;
 
 public final class PreProcessor extends RLModule
 {
+	// Maximum number of epochs preprocessed concurrently
+	public static final int DEFAULT_PIPELINE_DEPTH = Math.max(2, Runtime.getRuntime().availableProcessors());
+	
+	// Epoch which has passed through the parallel preprocessing stage and is waiting for the serial stage
+	private static final class PreProcessedEpoch
+	{
+		public final ProcessedData rawData;
+		public final GpsTime measuredReceiveTime, receiveTime;
+		public final GpsTime[] transmitTimes;
+		public final boolean clockBiasFailed;
+		public final double failedClockBias;
+		
+		public PreProcessedEpoch(final ProcessedData data, final GpsTime measuredTime, final GpsTime correctedTime, final GpsTime[] sendTimes, boolean failed, double failedBias)
+		{
+			rawData = data;
+			measuredReceiveTime = measuredTime;
+			receiveTime = correctedTime;
+			transmitTimes = sendTimes;
+			clockBiasFailed = failed;
+			failedClockBias = failedBias;
+		}
+	};
+	
 	// Member variables
 	private final String receiverID;
-	private volatile double previousClockBias = 0.0, previousReceiveEpoch = 0.0;
-	private volatile ProcessedData previousLocalData = new ProcessedData("", 0l, new Coordinate());
+	private double previousClockBias = 0.0, previousReceiveEpoch = 0.0;
+	private ProcessedData previousLocalData = new ProcessedData("", 0l, new Coordinate());
 	private final EphemerisDatum[] ephData = new EphemerisDatum[GpsConstants.MAX_PRN+1];
-	private final Lock preprocessingLock = new ReentrantLock(false);
+	private final OrbitArcCache orbitArcs = OrbitArcCache.getSharedCache();
+	private final ArrayBlockingQueue<PreProcessingWorkspace> workspaces;
+	private final HashMap<Long, PreProcessedEpoch> completedEpochs = new HashMap<Long, PreProcessedEpoch>();
+	private final AtomicLong nextSequenceNumber = new AtomicLong(0l);
+	private long nextCompletedSequenceNumber = 0l;
+	private volatile EphemerisStore ephemerisStore = null;
+	private volatile long latestReceiveTimeMS = 0l;
+	private final Lock ephemerisLock = new ReentrantLock(false), completionLock = new ReentrantLock(false);
 	
-	public PreProcessor(String moduleID, String rcvrID)
+	// Constructors
+	public PreProcessor(String moduleID, String rcvrID) { this(moduleID, rcvrID, DEFAULT_PIPELINE_DEPTH); }
+	public PreProcessor(String moduleID, String rcvrID, int pipelineDepth)
 	{
 		super(moduleID);
 		
@@ -56,112 +95,294 @@ public final class PreProcessor extends RLModule
 		addIncomingMessageType(RLMessageType.EPHEMERIS_DATA);
 		
 		receiverID = rcvrID;
+		workspaces = new ArrayBlockingQueue<PreProcessingWorkspace>(Math.max(pipelineDepth, 1));
+		for (int i = 0; i < Math.max(pipelineDepth, 1); ++i)
+			workspaces.add(new PreProcessingWorkspace());
 	}
 	
-	@Override
-	protected void incomingMessageHandler(final RLMessage message)
+	public int getPipelineDepth() { return workspaces.size() + workspaces.remainingCapacity(); }
+	
+	// Writes the current ephemeris table
+	public void writeCheckpoint(final DataOutputStream dataStreamOut) throws IOException
 	{
-		preprocessingLock.lock();
+		ArrayList<EphemerisDatum> ephemerides = new ArrayList<EphemerisDatum>();
+		ephemerisLock.lock();
 		try
 		{
-			switch (message.messageType)
+			for (final EphemerisDatum ephDatum : ephData)
+				if (ephDatum != null)
+					ephemerides.add(ephDatum);
+		}
+		finally { ephemerisLock.unlock(); }
+		
+		dataStreamOut.writeInt(ephemerides.size());
+		for (final EphemerisDatum ephDatum : ephemerides)
+			DataCodec.writeEphemeris(dataStreamOut, ephDatum);
+	}
+	
+	// Reads an ephemeris table written by writeCheckpoint without applying it, returning the action which restores it
+	//   (without replacing any ephemerides that have already been received)
+	public Runnable readCheckpoint(final DataInputStream dataStreamIn) throws IOException
+	{
+		final ArrayList<EphemerisDatum> ephemerides = new ArrayList<EphemerisDatum>();
+		int numEphemerides = dataStreamIn.readInt();
+		for (int i = 0; i < numEphemerides; ++i)
+		{
+			EphemerisDatum ephDatum = DataCodec.readEphemeris(dataStreamIn);
+			if ((ephDatum.PRN >= 0) && (ephDatum.PRN <= GpsConstants.MAX_PRN))
+				ephemerides.add(ephDatum);
+		}
+		
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ephemerisLock.lock();
+				try
+				{
+					for (final EphemerisDatum ephDatum : ephemerides)
+						if (ephData[ephDatum.PRN] == null)
+							ephData[ephDatum.PRN] = ephDatum;
+				}
+				finally { ephemerisLock.unlock(); }
+			}
+		};
+	}
+	
+	// Loads any still-valid ephemerides from the given store (without replacing ephemerides that have already been
+	//   received) and persists every subsequent GPS ephemeris update to it, or stops persisting if the store is null
+	public void setEphemerisStore(final EphemerisStore store, long gpsTimeMS)
+	{
+		if (store != null)
+			for (final EphemerisDatum ephDatum : store.load(gpsTimeMS))
 			{
-				case DECODED_DATA:
+				ephemerisLock.lock();
+				try
+				{
+					if (ephData[ephDatum.PRN] == null)
+						ephData[ephDatum.PRN] = ephDatum;
+				}
+				finally { ephemerisLock.unlock(); }
+			}
+		ephemerisStore = store;
+	}
+	
+	// Returns copies of the current GPS ephemerides, for sharing with peers
+	public ArrayList<EphemerisDatum> getEphemerides()
+	{
+		ephemerisLock.lock();
+		try { return getGpsEphemerides(); }
+		finally { ephemerisLock.unlock(); }
+	}
+	
+	public int getNumEphemerides()
+	{
+		int numEphemerides = 0;
+		ephemerisLock.lock();
+		try
+		{
+			for (int PRN = 1; PRN <= GpsConstants.MAX_GPS; ++PRN)
+				if ((ephData[PRN] != null) && !ephData[PRN].isSBAS)
+					++numEphemerides;
+		}
+		finally { ephemerisLock.unlock(); }
+		return numEphemerides;
+	}
+	
+	// Adopts a valid GPS ephemeris received from a peer if there is no local ephemeris for that satellite or the
+	//   peer's ephemeris is more recent (ephemerides decoded locally always replace the current ephemeris), as long as
+	//   the current time falls within its fit interval, so that a peer with a wrong clock can never pin a satellite to
+	//   an implausible ephemeris (the current time is taken from the latest observations, or the system clock before then)
+	public boolean offerEphemeris(final EphemerisDatum ephDatum)
+	{
+		long gpsTimeMS = (latestReceiveTimeMS != 0l) ? latestReceiveTimeMS : System.currentTimeMillis();
+		if ((ephDatum.PRN < 1) || (ephDatum.PRN > GpsConstants.MAX_GPS) || !EphemerisStore.isWithinFitInterval(ephDatum, gpsTimeMS))
+			return false;
+		
+		ephemerisLock.lock();
+		try
+		{
+			if ((ephData[ephDatum.PRN] != null) && (ephData[ephDatum.PRN].toe.timeMS >= ephDatum.toe.timeMS))
+				return false;
+			ephData[ephDatum.PRN] = ephDatum;
+			if (ephemerisStore != null)
+				ephemerisStore.saveInBackground(getGpsEphemerides());
+			return true;
+		}
+		finally { ephemerisLock.unlock(); }
+	}
+	
+	// Epochs are preprocessed concurrently by the framework's message threads (up to the pipeline depth, beyond which
+	//   further epochs wait for a free workspace), and then completed serially in the order in which they arrived
+	@Override
+	protected void incomingMessageHandler(final RLMessage message)
+	{
+		switch (message.messageType)
+		{
+			case DECODED_DATA:
+				{
 					DecodedData decodedData = ((DecodedData)message.data);
-					performPreProcessing(decodedData.rawObservations, decodedData.rawClock, decodedData.rawNav);
-					break;
-				case EPHEMERIS_DATA:
+					long sequenceNumber = nextSequenceNumber.getAndIncrement();
+					PreProcessedEpoch epoch = null;
+					PreProcessingWorkspace workspace = null;
+					try
 					{
-						EphemerisDatum ephDatum = ((EphemerisDatum)message.data);
+						workspace = workspaces.take();
+						epoch = performPreProcessing(decodedData.rawObservations, decodedData.rawClock, decodedData.rawNav, workspace);
+					}
+					catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+					finally
+					{
+						if (workspace != null)
+							workspaces.add(workspace);
+						completePreProcessing(sequenceNumber, epoch);
+					}
+				}
+				break;
+			case EPHEMERIS_DATA:
+				{
+					EphemerisDatum ephDatum = ((EphemerisDatum)message.data);
+					ephemerisLock.lock();
+					try
+					{
+						// The same ephemeris is decoded again every time it is rebroadcast, so the store is only rewritten when
+						//   the ephemeris actually changes
+						EphemerisDatum previousEphDatum = ephData[ephDatum.PRN];
 						ephData[ephDatum.PRN] = ephDatum;
+						if ((ephemerisStore != null) && !ephDatum.isSBAS && ((previousEphDatum == null) || (previousEphDatum.iode != ephDatum.iode) ||
+								(previousEphDatum.toe.timeMS != ephDatum.toe.timeMS)))
+							ephemerisStore.saveInBackground(getGpsEphemerides());
 					}
-					break;
-				default:
-					break;
-			}
+					finally { ephemerisLock.unlock(); }
+				}
+				break;
+			default:
+				break;
 		}
-		finally { preprocessingLock.unlock(); }
 	}
 	
-	private void performPreProcessing(final RawObservations satData, final RawClockData clockData, final RawNavData navData)
+	// Must be called while holding the ephemeris lock (copies are returned since the decoder reuses its ephemerides)
+	private ArrayList<EphemerisDatum> getGpsEphemerides()
+	{
+		ArrayList<EphemerisDatum> ephemerides = new ArrayList<EphemerisDatum>();
+		for (int PRN = 1; PRN <= GpsConstants.MAX_GPS; ++PRN)
+			if ((ephData[PRN] != null) && !ephData[PRN].isSBAS)
+				ephemerides.add(new EphemerisDatum(ephData[PRN]));
+		return ephemerides;
+	}
+	
+	// Parallel stage: everything which does not depend on previous epochs (returns null if the epoch cannot be used)
+	private PreProcessedEpoch performPreProcessing(final RawObservations satData, final RawClockData clockData, final RawNavData navData, final PreProcessingWorkspace workspace)
 	{
 		// Make sure the receiver has settled and formed a solution
 		if ((navData.X == 0.0) || (navData.Y == 0.0) || (navData.Z == 0.0))
-			return;
+			return null;
 		
 		// Initialize rawData variables
 		int satelliteNumber;
+		latestReceiveTimeMS = satData.receiveTime.timeMS;
 		ProcessedData rawData = new ProcessedData(receiverID, Math.round(satData.receiveTime.timeMS * 0.001), new Coordinate(navData.X, navData.Y, navData.Z));
 		GpsTime receiveTime = new GpsTime(satData.receiveTime);
 		rawData.receiverClockBias = (satData.receiveTime.timeMS + satData.receiveTime.fracMS - (navData.receiveTime.timeMS + navData.receiveTime.fracMS)) * 0.001;
 		rawData.receiverClockDrift = clockData.clockDrift;
 		rawData.PDOP = navData.PDOP;
 		rawData.positionAccuracy = navData.posAccuracy;
-		double timeDiff = rawData.receiveEpoch - previousReceiveEpoch;
 		
 		// Get current receiver data
-		for (final RawRxmData observation : satData.observations)
+		ephemerisLock.lock();
+		try
 		{
-			// Calculate satellite array number
-			satelliteNumber = observation.PRN;
-			if ((satelliteNumber > GpsConstants.MAX_PRN) || (ephData[satelliteNumber] == null))
-				continue;
-			
-			// Only use satellite measurements with good health, high elevation angles, and valid data
-			if ((ephData[satelliteNumber].svHealth > 0) || !ephData[satelliteNumber].isValid ||
-				(ephData[satelliteNumber].svAccur >= 5.0) || (observation.signalStrength < GpsConstants.MIN_SIGNAL_STRENGTH))
-				continue;
-
-			// Get pseudoranges, carrier code ranges, and doppler shifts
-			SatelliteObservation newSatData = new SatelliteObservation(new EphemerisDatum(ephData[satelliteNumber]),
-					observation.pseudorange, observation.carrierPhase * GpsConstants.LAMBDA_L1, observation.dopplerShift,
-					observation.signalStrength, (observation.lossOfLock & 0x02) > 0);
-			
-			// Only use satellite measurements with good health, high elevation angles, and valid data
-			rawData.observations.addData(satelliteNumber, newSatData);
+			for (final RawRxmData observation : satData.observations)
+			{
+				// Calculate satellite array number
+				satelliteNumber = observation.PRN;
+				if ((satelliteNumber > GpsConstants.MAX_PRN) || (ephData[satelliteNumber] == null))
+					continue;
+				
+				// Only use satellite measurements with good health, high elevation angles, and valid data
+				if ((ephData[satelliteNumber].svHealth > 0) || !ephData[satelliteNumber].isValid ||
+					(ephData[satelliteNumber].svAccur >= 5.0) || (observation.signalStrength < GpsConstants.MIN_SIGNAL_STRENGTH))
+					continue;
+				
+				// Get pseudoranges, carrier code ranges, and doppler shifts
+				SatelliteObservation newSatData = new SatelliteObservation(new EphemerisDatum(ephData[satelliteNumber]),
+						observation.pseudorange, observation.carrierPhase * GpsConstants.LAMBDA_L1, observation.dopplerShift,
+						observation.signalStrength, (observation.lossOfLock & 0x02) > 0);
+				
+				// Only use satellite measurements with good health, high elevation angles, and valid data
+				rawData.observations.addData(satelliteNumber, newSatData);
+			}
 		}
+		finally { ephemerisLock.unlock(); }
 		
 		// Correct pseudoranges for code bias and calculate satellite elevations and azimuths with respect to reference receiver position
 		GpsTime[] transmitTimes = new GpsTime[GpsConstants.MAX_PRN+1];
-		PreProcessingAlgorithms.correctDataForSatelliteClockBiases(rawData, satData.receiveTime, transmitTimes);
-		Iterator<Entry<Integer, SatelliteObservation>> iter = rawData.observations.getFullSatelliteCollection().iterator();
+		PreProcessingAlgorithms.correctDataForSatelliteClockBiases(rawData, satData.receiveTime, transmitTimes, workspace.keplerSolver);
+		for (final Entry<Integer, SatelliteObservation> entry : rawData.observations.getFullSatelliteCollection())
+			orbitArcs.calculateSatellitePosition(satData.receiveTime, transmitTimes[entry.getKey()], entry.getValue().ephemerisDatum);
+		
+		// Calculate satellite elevations and azimuths in the cached local frame, and don't use satellites lower than 15 degrees
+		workspace.localFrame.calculateElevationsAndAzimuths(rawData.absoluteLocation, rawData.observations);
+		Iterator<SatelliteObservation> iter = rawData.observations.getSatelliteObservations().iterator();
 		while (iter.hasNext())
-		{
-			// Calculate satellite position, velocity, elevation, and azimuth
-			Entry<Integer, SatelliteObservation> entry = iter.next();
-			EphemerisDatum ephDatum = entry.getValue().ephemerisDatum;
-			PreProcessingAlgorithms.calculateSatellitePosition(satData.receiveTime, transmitTimes[entry.getKey()], ephDatum);
-			PreProcessingAlgorithms.calculateElevationAndAzimuth(rawData.absoluteLocation, ephDatum);
-			
-			// Don't use satellites lower than 15 degrees
-			if (ephDatum.elevation < GpsConstants.MIN_SATELLITE_ELEVATION)
+			if (iter.next().ephemerisDatum.elevation < GpsConstants.MIN_SATELLITE_ELEVATION)
 				iter.remove();
-		}
 		
 		// Calculate receiver clock bias via location estimation and then correct data
+		final ClockBiasWorkspace clockBiasWorkspace = workspace.clockBiasWorkspace;
 		double clockBiasEst = 0.0;
-		ArrayList<Integer> badSatellites = new ArrayList<Integer>();
 		while (Math.abs(rawData.receiverClockBias - clockBiasEst) > 1.0e-12)
 		{
 			// Update satellite positions based on estimated clock bias (changes travel time/Earth rotation)
-			receiveTime = GpsTime.GpsTimeAdd(satData.receiveTime, -rawData.receiverClockBias*1000.0);
+			setClockCorrectedTime(receiveTime, satData.receiveTime, rawData.receiverClockBias);
 			clockBiasEst = rawData.receiverClockBias;
-			for (final Integer PRN : rawData.observations.getValidSatelliteNumbers())
-				PreProcessingAlgorithms.calculateSatellitePosition(receiveTime, transmitTimes[PRN], rawData.observations.getSatelliteData(PRN).ephemerisDatum);
+			for (final SatelliteObservation satDatum : rawData.observations.getSatelliteObservations())
+				orbitArcs.calculateSatellitePosition(receiveTime, transmitTimes[satDatum.ephemerisDatum.PRN], satDatum.ephemerisDatum);
 			
-			// Re-estimate the clock bias with the new satellite positions
-			badSatellites.clear();
-			if (!PreProcessingAlgorithms.estimateClockBias(rawData, badSatellites, rawData.absoluteLocation))
-			{
-				rawData.receiverClockBias = (Math.abs(previousClockBias) < 0.000000001) || (Math.abs(previousClockBias - clockBiasEst) > 0.000001) ?
-						rawData.receiverClockBias : (previousClockBias + timeDiff*rawData.receiverClockDrift);
-				receiveTime = GpsTime.GpsTimeAdd(satData.receiveTime, -rawData.receiverClockBias*1000.0);
-				break;
-			}
+			// Re-estimate the clock bias with the new satellite positions (falling back on the previous epoch's clock bias
+			//   in the serial stage if estimation fails)
+			clockBiasWorkspace.ignoredSatellites.clear();
+			if (!PreProcessingAlgorithms.estimateClockBias(rawData, rawData.absoluteLocation, clockBiasWorkspace))
+				return new PreProcessedEpoch(rawData, satData.receiveTime, receiveTime, transmitTimes, true, clockBiasEst);
 			
 			// Remove erroneous satellite observations
-			for (Integer PRN : badSatellites)
-				rawData.observations.removeSatelliteData(PRN);
+			if (!clockBiasWorkspace.ignoredSatellites.isEmpty())
+				for (int PRN = 0; PRN <= GpsConstants.MAX_PRN; ++PRN)
+					if (clockBiasWorkspace.ignoredSatellites.contains(PRN))
+						rawData.observations.removeSatelliteData(PRN);
+		}
+		
+		return new PreProcessedEpoch(rawData, satData.receiveTime, receiveTime, transmitTimes, false, clockBiasEst);
+	}
+	
+	// Serial stage: queues the given epoch (null if unusable) and completes all queued epochs which are next in sequence
+	private void completePreProcessing(long sequenceNumber, final PreProcessedEpoch epoch)
+	{
+		completionLock.lock();
+		try
+		{
+			completedEpochs.put(sequenceNumber, epoch);
+			while (completedEpochs.containsKey(nextCompletedSequenceNumber))
+			{
+				PreProcessedEpoch nextEpoch = completedEpochs.remove(nextCompletedSequenceNumber++);
+				if (nextEpoch != null)
+					completePreProcessing(nextEpoch);
+			}
+		}
+		finally { completionLock.unlock(); }
+	}
+	
+	// Must be called while holding the completion lock
+	private void completePreProcessing(final PreProcessedEpoch epoch)
+	{
+		ProcessedData rawData = epoch.rawData;
+		if (epoch.clockBiasFailed)
+		{
+			double timeDiff = rawData.receiveEpoch - previousReceiveEpoch;
+			rawData.receiverClockBias = (Math.abs(previousClockBias) < 0.000000001) || (Math.abs(previousClockBias - epoch.failedClockBias) > 0.000001) ?
+					rawData.receiverClockBias : (previousClockBias + timeDiff*rawData.receiverClockDrift);
+			setClockCorrectedTime(epoch.receiveTime, epoch.measuredReceiveTime, rawData.receiverClockBias);
 		}
 		previousClockBias = rawData.receiverClockBias;
 		previousReceiveEpoch = rawData.receiveEpoch;
@@ -170,7 +391,7 @@ public final class PreProcessor extends RLModule
 		PreProcessingAlgorithms.checkForCycleSlips(rawData, previousLocalData);
 		
 		// Extrapolate data and satellite positions to the nearest epoch
-		PreProcessingAlgorithms.extrapolateDataToNearestEpoch(receiveTime, transmitTimes, rawData);
+		PreProcessingAlgorithms.extrapolateDataToNearestEpoch(epoch.receiveTime, epoch.transmitTimes, rawData, orbitArcs);
 		
 		// Store for later use
 		previousLocalData = new ProcessedData(rawData);
@@ -178,4 +399,11 @@ public final class PreProcessor extends RLModule
 		// Combine into one DecodedData packet and send to next module
 		sendMessageToNextModule(new RLMessage(rawData));
 	}
+	
+	private static void setClockCorrectedTime(final GpsTime correctedTime, final GpsTime receiveTime, double clockBias)
+	{
+		correctedTime.timeMS = receiveTime.timeMS;
+		correctedTime.fracMS = receiveTime.fracMS;
+		GpsTime.GpsTimeAddInPlace(correctedTime, -clockBias*1000.0);
+	}
 }
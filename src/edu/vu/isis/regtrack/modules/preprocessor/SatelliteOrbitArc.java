@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Will Hedgecock
+ * This file is part of RegTrack: A Relative GPS Tracking Solution
+ * 
+ * RegTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * RegTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with RegTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.vu.isis.regtrack.modules.preprocessor;
+
+import edu.vu.isis.regtrack.common.EphemerisDatum;
+import edu.vu.isis.regtrack.common.GpsConstants;
+
+// Chebyshev approximation of a single broadcast orbit (one PRN and IODE) over a short, fixed-length arc of time,
+//   fitted from a handful of exact Keplerian evaluations so that positions anywhere within the arc can be
+//   interpolated to sub-millimeter accuracy using only polynomial arithmetic
+final class SatelliteOrbitArc
+{
+	public static final double ARC_LENGTH = 300.0;
+	public static final int NUM_COEFFICIENTS = 12;
+	
+	// Member variables
+	public final int PRN, iode;
+	public final long toeMS;
+	public final long arcIndex;
+	public final double arcStart, arcEnd;
+	private final double arcMidpoint, arcHalfLength;
+	private final double[] coefficientsX = new double[NUM_COEFFICIENTS], coefficientsY = new double[NUM_COEFFICIENTS], coefficientsZ = new double[NUM_COEFFICIENTS];
+	
+	// Constructor (fits the arc containing time tk, in seconds from the time of ephemeris)
+	public SatelliteOrbitArc(final EphemerisDatum ephDatum, double tk)
+	{
+		PRN = ephDatum.PRN;
+		iode = ephDatum.iode;
+		toeMS = ephDatum.toe.timeMS;
+		arcIndex = arcIndexOf(tk);
+		arcStart = arcIndex * ARC_LENGTH;
+		arcEnd = arcStart + ARC_LENGTH;
+		arcHalfLength = 0.5 * ARC_LENGTH;
+		arcMidpoint = arcStart + arcHalfLength;
+		
+		// Evaluate the orbit in the Earth-fixed frame at the time of transmission at each Chebyshev node
+		final double[] position = new double[3];
+		for (int k = 0; k < NUM_COEFFICIENTS; ++k)
+		{
+			double node = Math.cos(Math.PI * (k + 0.5) / NUM_COEFFICIENTS);
+			PreProcessingAlgorithms.calculateOrbitPosition(ephDatum, arcMidpoint + (arcHalfLength * node), 0.0, position);
+			for (int j = 0; j < NUM_COEFFICIENTS; ++j)
+			{
+				double basis = Math.cos(Math.PI * j * (k + 0.5) / NUM_COEFFICIENTS) * (2.0 / NUM_COEFFICIENTS);
+				coefficientsX[j] += position[0] * basis;
+				coefficientsY[j] += position[1] * basis;
+				coefficientsZ[j] += position[2] * basis;
+			}
+		}
+		coefficientsX[0] *= 0.5;
+		coefficientsY[0] *= 0.5;
+		coefficientsZ[0] *= 0.5;
+	}
+	
+	public static long arcIndexOf(double tk) { return (long)Math.floor(tk / ARC_LENGTH); }
+	
+	// Returns true if this arc was fitted from the given ephemeris and spans time tk
+	public boolean covers(final EphemerisDatum ephDatum, double tk)
+	{
+		return (ephDatum.PRN == PRN) && (ephDatum.iode == iode) && (ephDatum.toe.timeMS == toeMS) && (tk >= arcStart) && (tk < arcEnd);
+	}
+	
+	// Interpolates the position at time tk and rotates it into the Earth-fixed frame at the time of reception
+	//   (travelTime seconds later), matching PreProcessingAlgorithms.calculateOrbitPosition
+	public void evaluate(double tk, double travelTime, final EphemerisDatum ephDatum)
+	{
+		// Clenshaw recurrence for all three coordinates at once
+		double x = (tk - arcMidpoint) / arcHalfLength, twoX = 2.0 * x;
+		double bX = 0.0, bY = 0.0, bZ = 0.0, bX1 = 0.0, bY1 = 0.0, bZ1 = 0.0, temp;
+		for (int j = NUM_COEFFICIENTS - 1; j > 0; --j)
+		{
+			temp = bX;
+			bX = (twoX * bX) - bX1 + coefficientsX[j];
+			bX1 = temp;
+			temp = bY;
+			bY = (twoX * bY) - bY1 + coefficientsY[j];
+			bY1 = temp;
+			temp = bZ;
+			bZ = (twoX * bZ) - bZ1 + coefficientsZ[j];
+			bZ1 = temp;
+		}
+		double X = (x * bX) - bX1 + coefficientsX[0], Y = (x * bY) - bY1 + coefficientsY[0];
+		
+		// Earth rotation during signal travel (the angle is small enough that a second-order expansion is exact
+		//   to well below a micrometer)
+		double angle = GpsConstants.EARTH_ANGULAR_VELOCITY * travelTime, cosAngle = 1.0 - (0.5 * angle * angle);
+		ephDatum.X = (X * cosAngle) + (Y * angle);
+		ephDatum.Y = (Y * cosAngle) - (X * angle);
+		ephDatum.Z = (x * bZ) - bZ1 + coefficientsZ[0];
+	}
+}